@@ -0,0 +1,387 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
+
+/**
+ * Announces to every tracker tier of a torrent without blocking the caller.
+ * Trackers within a tier are tried in order until one answers, and the one
+ * that answers is moved to the front of its tier for the next announce. The
+ * tiers are announced to at the same time, so the first peers arrive from
+ * whichever tracker is fastest, and each tier's peers are handed to the client
+ * as soon as they arrive, minus those that another tier already gave in the
+ * same announce.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class AnnounceManager {
+
+	/**
+	 * Logger for the announce manager.
+	 */
+	private final static Logger LOGGER = Logger
+			.getLogger(AnnounceManager.class.getName());
+
+	/**
+	 * The longest time in milliseconds to wait for any tracker to answer an
+	 * announce.
+	 */
+	static final long ANNOUNCE_TIMEOUT = 60000;
+
+	/**
+	 * The trackers of each tier, in the order that they are tried. Each tier
+	 * is locked while it is reordered.
+	 */
+	private final List<List<Tracker>> tiers;
+
+	/**
+	 * Runs the announces to each tier.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The client that new peers are given to.
+	 */
+	private final RUBTClient client;
+
+	/**
+	 * The port that the client is listening on.
+	 */
+	private volatile int port;
+
+	/**
+	 * The number of announces started so far.
+	 */
+	private int round = 0;
+
+	/**
+	 * The shortest interval returned by a tracker in the latest announce, in
+	 * seconds.
+	 */
+	private int interval = 60;
+
+	/**
+	 * The announce that the interval was returned in.
+	 */
+	private int intervalRound = 0;
+
+	/**
+	 * Creates a new announce manager. The trackers of each tier are shuffled.
+	 * 
+	 * @param announceTiers
+	 *            the announce URLs of each tier
+	 * @param clientId
+	 *            the local client's peer id
+	 * @param infoHash
+	 *            the torrent's info hash
+	 * @param port
+	 *            the listen port for the local client
+	 * @param executor
+	 *            the executor that announces are run on
+	 * @param client
+	 *            the client that new peers are given to
+	 */
+	AnnounceManager(final String[][] announceTiers, final byte[] clientId,
+			final byte[] infoHash, final int port,
+			final ExecutorService executor, final RUBTClient client) {
+		this.tiers = new ArrayList<List<Tracker>>(announceTiers.length);
+		for (final String[] urls : announceTiers) {
+			final List<Tracker> tier = new ArrayList<Tracker>(urls.length);
+			for (final String url : urls) {
+				try {
+					tier.add(new Tracker(clientId, infoHash, url, port));
+				} catch (final IllegalArgumentException iae) {
+					AnnounceManager.LOGGER.warning("Skipping tracker " + url
+							+ ": " + iae.getMessage());
+				}
+			}
+			if (!tier.isEmpty()) {
+				Collections.shuffle(tier);
+				this.tiers.add(tier);
+			}
+		}
+		this.port = port;
+		this.executor = executor;
+		this.client = client;
+	}
+
+	/**
+	 * @return the port that the client is listening on
+	 */
+	int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * Updates the port that the client is listening on.
+	 * 
+	 * @param port
+	 *            the port to set
+	 */
+	void setPort(final int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @return the shortest interval returned by a tracker in the latest
+	 *         announce, in seconds
+	 */
+	synchronized int getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * Sets the number of peers to ask every tracker for.
+	 * 
+	 * @param numWant
+	 *            the number of peers, or -1 for the trackers' default
+	 */
+	void setNumWant(final int numWant) {
+		for (final List<Tracker> tier : this.tiers) {
+			synchronized (tier) {
+				for (final Tracker tracker : tier) {
+					tracker.setNumWant(numWant);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives the largest swarm reported by any tracker, since each tracker
+	 * only knows the peers that announce to it.
+	 * 
+	 * @return the cached swarm statistics, or {@code null} if no tracker has
+	 *         reported any lately
+	 */
+	ScrapeStats getSwarmStats() {
+		ScrapeStats largest = null;
+		for (final List<Tracker> tier : this.tiers) {
+			synchronized (tier) {
+				for (final Tracker tracker : tier) {
+					final ScrapeStats stats = tracker.getSwarmStats();
+					if ((stats != null)
+							&& ((largest == null) || (stats.getSwarmSize() > largest
+									.getSwarmSize()))) {
+						largest = stats;
+					}
+				}
+			}
+		}
+		return largest;
+	}
+
+	/**
+	 * Scrapes the first tracker of each tier whose swarm statistics have
+	 * expired, without blocking.
+	 * 
+	 * @param infoHash
+	 *            the info hash of the torrent
+	 */
+	void refreshSwarmStats(final byte[] infoHash) {
+		for (final List<Tracker> tier : this.tiers) {
+			final Tracker tracker;
+			synchronized (tier) {
+				tracker = tier.get(0);
+			}
+			if (!tracker.canScrape() || (tracker.getSwarmStats() != null)) {
+				continue;
+			}
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						AnnounceManager.LOGGER.info("Scraped " + tracker + ": "
+								+ tracker.scrape(infoHash).values());
+					} catch (final IOException ioe) {
+						AnnounceManager.LOGGER.log(Level.WARNING, "Scrape of "
+								+ tracker + " failed", ioe);
+					} catch (final BencodingException be) {
+						AnnounceManager.LOGGER.log(Level.WARNING, "Tracker "
+								+ tracker + " scrape response invalid", be);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Announces to every tier at once without blocking. Peers are given to
+	 * the client as each tier answers, and the client is told when the first
+	 * tier answers or every tier has failed.
+	 * 
+	 * @param downloaded
+	 *            the number of bytes downloaded in this torrent
+	 * @param uploaded
+	 *            the number of bytes uploaded in this torrent
+	 * @param left
+	 *            the number of bytes remaining in the file
+	 * @param event
+	 *            the announce event (optional)
+	 * @return a future that gives {@code true} once a tracker answered, or
+	 *         {@code false} if every tracker failed or none answered in time
+	 */
+	Future<Boolean> announce(final long downloaded, final long uploaded,
+			final long left, final String event) {
+		final int currentRound;
+		synchronized (this) {
+			currentRound = ++this.round;
+		}
+		final Set<String> seen = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final CompletionService<Boolean> results = new ExecutorCompletionService<Boolean>(
+				this.executor);
+		for (final List<Tracker> tier : this.tiers) {
+			results.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return AnnounceManager.this.announceTier(tier,
+							currentRound, seen, downloaded, uploaded, left,
+							event);
+				}
+			});
+		}
+
+		return this.executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				final boolean answered = AnnounceManager.this
+						.awaitFirstAnswer(results);
+				AnnounceManager.this.client.announceFinished(event, answered);
+				return answered;
+			}
+		});
+	}
+
+	/**
+	 * Waits for the first tier to answer, for at most
+	 * {@link #ANNOUNCE_TIMEOUT}. Tiers that are still running afterwards may
+	 * still add peers.
+	 * 
+	 * @param results
+	 *            the results of the announce to each tier
+	 * @return {@code true} if a tier answered in time
+	 */
+	private boolean awaitFirstAnswer(final CompletionService<Boolean> results) {
+		final long deadline = System.currentTimeMillis()
+				+ AnnounceManager.ANNOUNCE_TIMEOUT;
+		for (int i = 0; i < this.tiers.size(); i++) {
+			try {
+				final Future<Boolean> result = results.poll(
+						deadline - System.currentTimeMillis(),
+						TimeUnit.MILLISECONDS);
+				if (result == null) {
+					AnnounceManager.LOGGER
+							.warning("No tracker answered within "
+									+ AnnounceManager.ANNOUNCE_TIMEOUT + " ms");
+					return false;
+				}
+				if (result.get()) {
+					return true;
+				}
+			} catch (final ExecutionException ee) {
+				AnnounceManager.LOGGER.log(Level.WARNING,
+						"Announce to tracker tier failed", ee.getCause());
+			} catch (final InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Announces to the trackers of a tier in order until one answers, and
+	 * moves that tracker to the front of the tier.
+	 * 
+	 * @param tier
+	 *            the trackers of the tier
+	 * @param currentRound
+	 *            the announce that this is part of
+	 * @param seen
+	 *            the peers already given to the client in this announce
+	 * @return {@code true} if a tracker answered
+	 */
+	private boolean announceTier(final List<Tracker> tier,
+			final int currentRound, final Set<String> seen,
+			final long downloaded, final long uploaded, final long left,
+			final String event) {
+		final List<Tracker> trackers;
+		synchronized (tier) {
+			trackers = new ArrayList<Tracker>(tier);
+		}
+		for (final Tracker tracker : trackers) {
+			tracker.setPort(this.port);
+			final List<Peer> peers;
+			try {
+				peers = tracker.announce(downloaded, uploaded, left, event);
+			} catch (final IOException ioe) {
+				AnnounceManager.LOGGER.log(Level.WARNING, "Announce to "
+						+ tracker + " failed", ioe);
+				continue;
+			} catch (final BencodingException be) {
+				AnnounceManager.LOGGER.log(Level.WARNING, "Tracker " + tracker
+						+ " response invalid", be);
+				continue;
+			}
+
+			synchronized (tier) {
+				tier.remove(tracker);
+				tier.add(0, tracker);
+			}
+			this.updateInterval(currentRound, tracker.getInterval());
+
+			if (peers != null) {
+				final List<Peer> newPeers = new ArrayList<Peer>(peers.size());
+				for (final Peer peer : peers) {
+					if (seen.add(peer.getIp() + ":" + peer.getPort())) {
+						newPeers.add(peer);
+					}
+				}
+				if (!newPeers.isEmpty()) {
+					this.client.addPeers(newPeers);
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Keeps the shortest interval returned in the latest announce.
+	 * 
+	 * @param currentRound
+	 *            the announce that the interval was returned in
+	 * @param trackerInterval
+	 *            the interval returned by a tracker, in seconds
+	 */
+	private synchronized void updateInterval(final int currentRound,
+			final int trackerInterval) {
+		if (currentRound < this.intervalRound) {
+			// A newer announce already answered
+			return;
+		}
+		if (currentRound > this.intervalRound) {
+			// First answer to this announce replaces the old interval
+			this.intervalRound = currentRound;
+			this.interval = trackerInterval;
+		} else {
+			this.interval = Math.min(this.interval, trackerInterval);
+		}
+	}
+}
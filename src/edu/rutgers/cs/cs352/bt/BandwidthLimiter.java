@@ -0,0 +1,260 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Limits the client's upload and download rates with a hierarchy of token
+ * buckets: one global bucket for each direction, and optionally one per peer
+ * below it. A transfer may only use the bytes granted by both its peer's
+ * bucket and the global bucket. Every byte on the wire is counted, including
+ * handshakes, message headers and keep-alives.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class BandwidthLimiter {
+
+	/**
+	 * The global upload bucket.
+	 */
+	private final TokenBucket upload = new TokenBucket();
+
+	/**
+	 * The global download bucket.
+	 */
+	private final TokenBucket download = new TokenBucket();
+
+	/**
+	 * The upload rate of each peer in bytes per second, or 0 for no limit.
+	 */
+	private volatile long peerUploadRate = 0;
+
+	/**
+	 * The download rate of each peer in bytes per second, or 0 for no limit.
+	 */
+	private volatile long peerDownloadRate = 0;
+
+	/**
+	 * Sets the global upload rate.
+	 * 
+	 * @param rate
+	 *            the rate in bytes per second, or 0 for no limit
+	 */
+	void setUploadRate(final long rate) {
+		this.upload.setRate(rate);
+	}
+
+	/**
+	 * Sets the global download rate.
+	 * 
+	 * @param rate
+	 *            the rate in bytes per second, or 0 for no limit
+	 */
+	void setDownloadRate(final long rate) {
+		this.download.setRate(rate);
+	}
+
+	/**
+	 * Sets the upload rate of every peer. Each peer's bucket picks up the new
+	 * rate on its next write.
+	 * 
+	 * @param rate
+	 *            the rate in bytes per second, or 0 for no limit
+	 */
+	void setPeerUploadRate(final long rate) {
+		this.peerUploadRate = Math.max(0, rate);
+	}
+
+	/**
+	 * Sets the download rate of every peer. Each peer's bucket picks up the
+	 * new rate on its next read.
+	 * 
+	 * @param rate
+	 *            the rate in bytes per second, or 0 for no limit
+	 */
+	void setPeerDownloadRate(final long rate) {
+		this.peerDownloadRate = Math.max(0, rate);
+	}
+
+	/**
+	 * @param peerBucket
+	 *            the peer's upload bucket
+	 * @return {@code true} if writes to the peer are limited
+	 */
+	boolean isUploadLimited(final TokenBucket peerBucket) {
+		return this.upload.isLimited() || (this.peerUploadRate > 0)
+				|| peerBucket.isLimited();
+	}
+
+	/**
+	 * Takes the bytes that may be written to a peer right now.
+	 * 
+	 * @param peerBucket
+	 *            the peer's upload bucket
+	 * @param wanted
+	 *            the number of bytes waiting to be written
+	 * @return the number of bytes that may be written, possibly 0
+	 */
+	int takeUpload(final TokenBucket peerBucket, final int wanted) {
+		return BandwidthLimiter.take(peerBucket, this.peerUploadRate,
+				this.upload, wanted);
+	}
+
+	/**
+	 * Returns upload bytes that were taken but not written.
+	 * 
+	 * @param peerBucket
+	 *            the peer's upload bucket
+	 * @param unused
+	 *            the number of bytes that weren't written
+	 */
+	void giveUpload(final TokenBucket peerBucket, final int unused) {
+		peerBucket.give(unused);
+		this.upload.give(unused);
+	}
+
+	/**
+	 * Takes the bytes that may be read from a peer right now.
+	 * 
+	 * @param peerBucket
+	 *            the peer's download bucket
+	 * @param wanted
+	 *            the room left in the read buffer
+	 * @return the number of bytes that may be read, possibly 0
+	 */
+	int takeDownload(final TokenBucket peerBucket, final int wanted) {
+		return BandwidthLimiter.take(peerBucket, this.peerDownloadRate,
+				this.download, wanted);
+	}
+
+	/**
+	 * Returns download bytes that were taken but not read.
+	 * 
+	 * @param peerBucket
+	 *            the peer's download bucket
+	 * @param unused
+	 *            the number of bytes that weren't read
+	 */
+	void giveDownload(final TokenBucket peerBucket, final int unused) {
+		peerBucket.give(unused);
+		this.download.give(unused);
+	}
+
+	/**
+	 * Takes tokens from a peer's bucket and then from the global bucket,
+	 * returning to the peer's bucket whatever the global bucket didn't grant.
+	 * 
+	 * @param peerBucket
+	 *            the peer's bucket
+	 * @param peerRate
+	 *            the configured rate for each peer
+	 * @param global
+	 *            the global bucket
+	 * @param wanted
+	 *            the number of bytes wanted
+	 * @return the number of bytes granted by both buckets
+	 */
+	private static int take(final TokenBucket peerBucket, final long peerRate,
+			final TokenBucket global, final int wanted) {
+		if (peerBucket.getRate() != peerRate) {
+			peerBucket.setRate(peerRate);
+		}
+		final int fromPeer = peerBucket.take(wanted);
+		if (fromPeer <= 0) {
+			return 0;
+		}
+		final int granted = global.take(fromPeer);
+		peerBucket.give(fromPeer - granted);
+		return granted;
+	}
+
+	/**
+	 * A channel that passes at most a fixed number of bytes through to the
+	 * peer's socket, so that queued messages and block uploads can't write
+	 * more than the limiter granted.
+	 */
+	static class LimitedChannel implements GatheringByteChannel {
+		private final GatheringByteChannel channel;
+		private int allowance;
+
+		/**
+		 * @param channel
+		 *            the peer's socket channel
+		 * @param allowance
+		 *            the number of bytes that may be written
+		 */
+		LimitedChannel(final GatheringByteChannel channel, final int allowance) {
+			this.channel = channel;
+			this.allowance = allowance;
+		}
+
+		/**
+		 * @return the number of granted bytes that weren't written
+		 */
+		int getAllowance() {
+			return this.allowance;
+		}
+
+		@Override
+		public int write(final ByteBuffer src) throws IOException {
+			if (this.allowance <= 0) {
+				return 0;
+			}
+			final int limit = src.limit();
+			if (src.remaining() > this.allowance) {
+				src.limit(src.position() + this.allowance);
+			}
+			try {
+				final int written = this.channel.write(src);
+				this.allowance -= written;
+				return written;
+			} finally {
+				src.limit(limit);
+			}
+		}
+
+		@Override
+		public long write(final ByteBuffer[] srcs, final int offset,
+				final int length) throws IOException {
+			if (this.allowance <= 0) {
+				return 0;
+			}
+			// Hide whatever doesn't fit in the allowance for this write
+			final int[] limits = new int[length];
+			int left = this.allowance;
+			for (int i = 0; i < length; i++) {
+				final ByteBuffer src = srcs[offset + i];
+				limits[i] = src.limit();
+				final int allowed = Math.min(src.remaining(), left);
+				src.limit(src.position() + allowed);
+				left -= allowed;
+			}
+			try {
+				final long written = this.channel.write(srcs, offset, length);
+				this.allowance -= written;
+				return written;
+			} finally {
+				for (int i = 0; i < length; i++) {
+					srcs[offset + i].limit(limits[i]);
+				}
+			}
+		}
+
+		@Override
+		public long write(final ByteBuffer[] srcs) throws IOException {
+			return this.write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return this.channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bitfield of pieces that may be read and changed from any thread without
+ * locking. Bits are packed into 64-bit words most significant bit first,
+ * which is the bit order of the Bitfield message, so encoding a bitfield
+ * copies it a word at a time.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class Bitfield {
+
+	/**
+	 * The number of bits in a word.
+	 */
+	private static final int WORD_LENGTH = 64;
+
+	/**
+	 * The number of bits.
+	 */
+	private final int length;
+
+	/**
+	 * The bits, most significant bit first within each word.
+	 */
+	private final AtomicLongArray words;
+
+	/**
+	 * The number of set bits.
+	 */
+	private final AtomicInteger cardinality = new AtomicInteger();
+
+	/**
+	 * Creates a new bitfield with every bit cleared.
+	 * 
+	 * @param length
+	 *            the number of bits, one per piece
+	 */
+	Bitfield(final int length) {
+		this.length = length;
+		this.words = new AtomicLongArray((length + Bitfield.WORD_LENGTH - 1)
+				/ Bitfield.WORD_LENGTH);
+	}
+
+	/**
+	 * Decodes a bitfield in the bit order of the Bitfield message, where the
+	 * high bit of the first byte is the first piece. Spare bits at the end are
+	 * ignored.
+	 * 
+	 * @param bytes
+	 *            the encoded bitfield
+	 * @param length
+	 *            the number of bits
+	 * @return the bitfield
+	 * @throws IllegalArgumentException
+	 *             if the encoded bitfield has the wrong length
+	 */
+	static Bitfield valueOf(final byte[] bytes, final int length) {
+		if (bytes.length != Bitfield.byteLength(length)) {
+			throw new IllegalArgumentException("Bitfield of " + bytes.length
+					+ " bytes for " + length + " bits");
+		}
+		final Bitfield bitfield = new Bitfield(length);
+		final int wordCount = bitfield.words.length();
+		int count = 0;
+		for (int w = 0; w < wordCount; w++) {
+			long word = 0;
+			for (int b = w * 8; (b < ((w + 1) * 8)) && (b < bytes.length); b++) {
+				word |= (bytes[b] & 0xFFL) << (56 - ((b % 8) * 8));
+			}
+			if (w == (wordCount - 1)) {
+				word &= Bitfield.lastWordMask(length);
+			}
+			bitfield.words.set(w, word);
+			count += Long.bitCount(word);
+		}
+		bitfield.cardinality.set(count);
+		return bitfield;
+	}
+
+	/**
+	 * Gives the length of an encoded bitfield.
+	 * 
+	 * @param length
+	 *            the number of bits
+	 * @return the number of bytes
+	 */
+	static int byteLength(final int length) {
+		return (length + 7) / 8;
+	}
+
+	/**
+	 * @return the mask of the bits in use in the last word
+	 */
+	private static long lastWordMask(final int length) {
+		final int used = length % Bitfield.WORD_LENGTH;
+		return (used == 0) ? -1L : ~(-1L >>> used);
+	}
+
+	/**
+	 * @return the mask of a bit within its word
+	 */
+	private static long mask(final int bit) {
+		return Long.MIN_VALUE >>> (bit % Bitfield.WORD_LENGTH);
+	}
+
+	/**
+	 * @throws IndexOutOfBoundsException
+	 *             if the bit is outside the bitfield
+	 */
+	private void checkIndex(final int bit) {
+		if ((bit < 0) || (bit >= this.length)) {
+			throw new IndexOutOfBoundsException("Bit " + bit
+					+ " of a bitfield of " + this.length);
+		}
+	}
+
+	/**
+	 * @return the number of bits
+	 */
+	int length() {
+		return this.length;
+	}
+
+	/**
+	 * @return the number of set bits
+	 */
+	int cardinality() {
+		return this.cardinality.get();
+	}
+
+	/**
+	 * @param bit
+	 *            the zero-based bit index
+	 * @return {@code true} if the bit is set
+	 */
+	boolean get(final int bit) {
+		this.checkIndex(bit);
+		return (this.words.get(bit / Bitfield.WORD_LENGTH) & Bitfield
+				.mask(bit)) != 0;
+	}
+
+	/**
+	 * Sets a bit.
+	 * 
+	 * @param bit
+	 *            the zero-based bit index
+	 * @return {@code true} if this call set the bit, {@code false} if it was
+	 *         already set
+	 */
+	boolean set(final int bit) {
+		this.checkIndex(bit);
+		final int w = bit / Bitfield.WORD_LENGTH;
+		final long mask = Bitfield.mask(bit);
+		long word;
+		do {
+			word = this.words.get(w);
+			if ((word & mask) != 0) {
+				return false;
+			}
+		} while (!this.words.compareAndSet(w, word, word | mask));
+		this.cardinality.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Clears a bit.
+	 * 
+	 * @param bit
+	 *            the zero-based bit index
+	 * @return {@code true} if this call cleared the bit, {@code false} if it
+	 *         was already clear
+	 */
+	boolean clear(final int bit) {
+		this.checkIndex(bit);
+		final int w = bit / Bitfield.WORD_LENGTH;
+		final long mask = Bitfield.mask(bit);
+		long word;
+		do {
+			word = this.words.get(w);
+			if ((word & mask) == 0) {
+				return false;
+			}
+		} while (!this.words.compareAndSet(w, word, word & ~mask));
+		this.cardinality.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Finds the next set bit, for iterating over the set bits with
+	 * {@code for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1))}.
+	 * 
+	 * @param from
+	 *            the bit to start from, inclusive
+	 * @return the index of the next set bit, or -1 if there is none
+	 */
+	int nextSetBit(final int from) {
+		return this.next(from, false);
+	}
+
+	/**
+	 * Finds the next clear bit, for iterating over the clear bits like
+	 * {@link #nextSetBit(int)}.
+	 * 
+	 * @param from
+	 *            the bit to start from, inclusive
+	 * @return the index of the next clear bit, or -1 if there is none
+	 */
+	int nextClearBit(final int from) {
+		return this.next(from, true);
+	}
+
+	/**
+	 * Finds the next set or clear bit.
+	 * 
+	 * @param from
+	 *            the bit to start from, inclusive
+	 * @param clear
+	 *            {@code true} to find a clear bit
+	 * @return the index of the bit, or -1 if there is none
+	 */
+	private int next(final int from, final boolean clear) {
+		if ((from < 0) || (from >= this.length)) {
+			return -1;
+		}
+		int w = from / Bitfield.WORD_LENGTH;
+		// Ignore the bits before the starting bit
+		long word = (clear ? ~this.words.get(w) : this.words.get(w))
+				& (-1L >>> (from % Bitfield.WORD_LENGTH));
+		while (word == 0) {
+			if (++w == this.words.length()) {
+				return -1;
+			}
+			word = clear ? ~this.words.get(w) : this.words.get(w);
+		}
+		final int bit = (w * Bitfield.WORD_LENGTH)
+				+ Long.numberOfLeadingZeros(word);
+		return (bit < this.length) ? bit : -1;
+	}
+
+	/**
+	 * Encodes the bitfield in the bit order of the Bitfield message. Each
+	 * word is read atomically, but bits changed while encoding may or may not
+	 * be included.
+	 * 
+	 * @return the encoded bitfield
+	 */
+	byte[] toByteArray() {
+		final byte[] bytes = new byte[Bitfield.byteLength(this.length)];
+		for (int w = 0; w < this.words.length(); w++) {
+			final long word = this.words.get(w);
+			for (int b = w * 8; (b < ((w + 1) * 8)) && (b < bytes.length); b++) {
+				bytes[b] = (byte) (word >>> (56 - ((b % 8) * 8)));
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder(this.length);
+		for (int bit = 0; bit < this.length; bit++) {
+			builder.append(this.get(bit) ? '1' : '0');
+		}
+		return builder.toString();
+	}
+}
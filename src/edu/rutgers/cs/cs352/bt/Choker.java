@@ -0,0 +1,191 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which peers the client uploads to. Every {@link #ROUND_PERIOD}
+ * milliseconds, the interested peers are ranked by the rate at which they
+ * upload to the client, or, once the client is seeding, by the rate at which
+ * the client uploads to them; the best {@link #DEFAULT_UNCHOKE_SLOTS} are
+ * unchoked and the rest choked. One more peer is unchoked optimistically and
+ * rotated every {@link #OPTIMISTIC_ROUNDS} rounds, so that new peers get a
+ * chance to prove themselves.
+ * 
+ * The choker is only used from the client's main loop.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class Choker {
+
+	/**
+	 * Logger for the choker.
+	 */
+	private final static Logger LOGGER = Logger.getLogger(Choker.class
+			.getName());
+
+	/**
+	 * The time in milliseconds between choking rounds.
+	 */
+	static final long ROUND_PERIOD = 10000;
+
+	/**
+	 * The optimistic unchoke is rotated once every this many rounds.
+	 */
+	private static final int OPTIMISTIC_ROUNDS = 3;
+
+	/**
+	 * The default number of peers unchoked by rank.
+	 */
+	static final int DEFAULT_UNCHOKE_SLOTS = 3;
+
+	/**
+	 * The number of peers unchoked by rank.
+	 */
+	private int unchokeSlots = Choker.DEFAULT_UNCHOKE_SLOTS;
+
+	/**
+	 * The peer that is unchoked optimistically, if any.
+	 */
+	private Peer optimistic = null;
+
+	/**
+	 * The number of rounds run so far.
+	 */
+	private int round = 0;
+
+	private final Random random = new Random();
+
+	/**
+	 * Sets the number of peers unchoked by rank, not counting the optimistic
+	 * unchoke.
+	 * 
+	 * @param unchokeSlots
+	 *            the number of peers, at least 1
+	 */
+	void setUnchokeSlots(final int unchokeSlots) {
+		this.unchokeSlots = Math.max(1, unchokeSlots);
+	}
+
+	/**
+	 * Runs a choking round.
+	 * 
+	 * @param peers
+	 *            the connected peers
+	 * @param seeding
+	 *            {@code true} if the client has the whole file
+	 */
+	void rechoke(final List<Peer> peers, final boolean seeding) {
+		// Rates keep changing on the event loops, so sort on a snapshot to
+		// keep the comparison consistent
+		final List<Peer> interested = new ArrayList<Peer>();
+		final Map<Peer, Long> rates = new IdentityHashMap<Peer, Long>();
+		for (final Peer peer : peers) {
+			if (peer.remoteInterested()) {
+				interested.add(peer);
+				rates.put(peer, seeding ? peer.getUploadRate() : peer
+						.getDownloadRate());
+			}
+		}
+
+		// Rank by reciprocation, or by how fast they take data when seeding
+		Collections.sort(interested, new Comparator<Peer>() {
+			@Override
+			public int compare(final Peer a, final Peer b) {
+				final long rateA = rates.get(a);
+				final long rateB = rates.get(b);
+				return rateA > rateB ? -1 : (rateA < rateB ? 1 : 0);
+			}
+		});
+		final List<Peer> unchoked = new ArrayList<Peer>(interested.subList(0,
+				Math.min(this.unchokeSlots, interested.size())));
+
+		// Rotate the optimistic unchoke among the remaining interested peers
+		if ((this.optimistic != null) && !peers.contains(this.optimistic)) {
+			this.optimistic = null;
+		}
+		if (((this.round % Choker.OPTIMISTIC_ROUNDS) == 0)
+				|| (this.optimistic == null)
+				|| unchoked.contains(this.optimistic)) {
+			final List<Peer> candidates = new ArrayList<Peer>(interested);
+			candidates.removeAll(unchoked);
+			this.optimistic = candidates.isEmpty() ? null : candidates
+					.get(this.random.nextInt(candidates.size()));
+		}
+		this.round++;
+
+		for (final Peer peer : peers) {
+			this.setChoked(peer,
+					!unchoked.contains(peer) && (peer != this.optimistic));
+		}
+		Choker.LOGGER.info("Unchoked " + unchoked + ", optimistic "
+				+ this.optimistic);
+	}
+
+	/**
+	 * Unchokes a peer that became interested right away if a slot is free,
+	 * rather than leaving it waiting for the next round.
+	 * 
+	 * @param peer
+	 *            the newly interested peer
+	 * @param peers
+	 *            the connected peers
+	 */
+	void interested(final Peer peer, final List<Peer> peers) {
+		int unchoked = 0;
+		for (final Peer other : peers) {
+			if (!other.remoteChoked() && other.remoteInterested()) {
+				unchoked++;
+			}
+		}
+		if (peer.remoteChoked() && (unchoked < (this.unchokeSlots + 1))) {
+			this.setChoked(peer, false);
+		}
+	}
+
+	/**
+	 * Forgets a peer that disconnected.
+	 * 
+	 * @param peer
+	 *            the peer
+	 */
+	void remove(final Peer peer) {
+		if (this.optimistic == peer) {
+			this.optimistic = null;
+		}
+	}
+
+	/**
+	 * Chokes or unchokes a peer if its state changes.
+	 * 
+	 * @param peer
+	 *            the peer
+	 * @param choked
+	 *            {@code true} to choke the peer
+	 */
+	private void setChoked(final Peer peer, final boolean choked) {
+		if (peer.remoteChoked() == choked) {
+			return;
+		}
+		try {
+			if (choked) {
+				peer.choke();
+			} else {
+				peer.sendMessage(Message.UNCHOKE);
+				peer.setRemoteChoked(false);
+			}
+		} catch (final IOException ioe) {
+			Choker.LOGGER.log(Level.WARNING, "Unable to "
+					+ (choked ? "choke " : "unchoke ") + peer, ioe);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Decides which peers the client connects to. Peers given by the trackers
+ * are kept in a pool of candidates, and candidates are dialed while there
+ * are free connection slots, with at most a few connections still connecting
+ * or handshaking at once. A candidate that fails to connect is tried again
+ * later, waiting twice as long after each failure. Called from the tracker
+ * threads and the client's main loop.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class ConnectionManager {
+
+	/**
+	 * Logger for the connection manager.
+	 */
+	private final static Logger LOGGER = Logger
+			.getLogger(ConnectionManager.class.getName());
+
+	/**
+	 * The default number of connections to keep.
+	 */
+	static final int DEFAULT_MAX_CONNECTIONS = 40;
+
+	/**
+	 * The default number of connections that may be connecting or
+	 * handshaking at once.
+	 */
+	static final int DEFAULT_MAX_HALF_OPEN = 8;
+
+	/**
+	 * The time in milliseconds to wait before dialing a candidate again after
+	 * its first failure, doubled for every failure after that.
+	 */
+	private static final long BASE_BACKOFF = 15000;
+
+	/**
+	 * The most times that the backoff is doubled.
+	 */
+	private static final int MAX_BACKOFF_DOUBLINGS = 6;
+
+	/**
+	 * The time in milliseconds between checks for candidates whose backoff
+	 * is over.
+	 */
+	static final long DIAL_INTERVAL = 1000;
+
+	/**
+	 * The most candidates kept in the pool.
+	 */
+	private static final int MAX_CANDIDATES = 1000;
+
+	/**
+	 * A peer endpoint that may be dialed.
+	 */
+	private static class Candidate {
+		private final byte[] peerId;
+		private final String ip;
+		private final int port;
+		private int failures = 0;
+		private long retryTime = 0;
+		private boolean dialed = false;
+
+		Candidate(final byte[] peerId, final String ip, final int port) {
+			this.peerId = peerId;
+			this.ip = ip;
+			this.port = port;
+		}
+	}
+
+	/**
+	 * The client that dials the peers.
+	 */
+	private final RUBTClient client;
+
+	/**
+	 * The infohash that identifies the torrent.
+	 */
+	private final byte[] infoHash;
+
+	/**
+	 * The unique ID to identify the local BT client.
+	 */
+	private final byte[] clientId;
+
+	/**
+	 * Every known candidate by "ip:port", in the order that they were given.
+	 */
+	private final Map<String, Candidate> candidates = new LinkedHashMap<String, Candidate>();
+
+	/**
+	 * The candidate of each peer that was dialed and hasn't disconnected yet.
+	 */
+	private final Map<Peer, Candidate> dialed = new IdentityHashMap<Peer, Candidate>();
+
+	/**
+	 * The number of connections to keep.
+	 */
+	private int maxConnections = ConnectionManager.DEFAULT_MAX_CONNECTIONS;
+
+	/**
+	 * The number of connections that may be connecting or handshaking at
+	 * once.
+	 */
+	private int maxHalfOpen = ConnectionManager.DEFAULT_MAX_HALF_OPEN;
+
+	/**
+	 * The number of peers in the swarm worth connecting to, as last scraped,
+	 * which caps the connections kept below {@link #maxConnections}.
+	 */
+	private int swarmSize = Integer.MAX_VALUE;
+
+	/**
+	 * Creates a new connection manager.
+	 * 
+	 * @param client
+	 *            the client that dials the peers
+	 * @param infoHash
+	 *            the torrent's info hash
+	 * @param clientId
+	 *            the local client's peer id
+	 */
+	ConnectionManager(final RUBTClient client, final byte[] infoHash,
+			final byte[] clientId) {
+		this.client = client;
+		this.infoHash = infoHash;
+		this.clientId = clientId;
+	}
+
+	/**
+	 * Sets the number of connections to keep.
+	 * 
+	 * @param maxConnections
+	 *            the number of connections, at least 1
+	 */
+	synchronized void setMaxConnections(final int maxConnections) {
+		this.maxConnections = Math.max(1, maxConnections);
+	}
+
+	/**
+	 * Sets the number of peers in the swarm worth connecting to, so that no
+	 * more connections are kept than the swarm can fill.
+	 * 
+	 * @param swarmSize
+	 *            the number of peers, or -1 if it isn't known
+	 */
+	synchronized void setSwarmSize(final int swarmSize) {
+		this.swarmSize = (swarmSize < 0) ? Integer.MAX_VALUE : Math.max(1,
+				swarmSize);
+	}
+
+	/**
+	 * Sets the number of connections that may be connecting or handshaking at
+	 * once.
+	 * 
+	 * @param maxHalfOpen
+	 *            the number of connections, at least 1
+	 */
+	synchronized void setMaxHalfOpen(final int maxHalfOpen) {
+		this.maxHalfOpen = Math.max(1, maxHalfOpen);
+	}
+
+	/**
+	 * Adds peers given by a tracker to the pool and dials as many as there
+	 * are free slots for. Candidates that are already known keep their
+	 * backoff.
+	 * 
+	 * @param peers
+	 *            the peers given by a tracker
+	 */
+	synchronized void addCandidates(final List<Peer> peers) {
+		for (final Peer peer : peers) {
+			final String key = peer.getIp() + ":" + peer.getPort();
+			if (!this.candidates.containsKey(key)
+					&& (this.candidates.size() < ConnectionManager.MAX_CANDIDATES)) {
+				this.candidates.put(key, new Candidate(peer.getPeerId(),
+						peer.getIp(), peer.getPort()));
+			}
+		}
+		this.fill();
+	}
+
+	/**
+	 * Dials candidates until every connection slot is taken, the half-open
+	 * limit is reached, or no candidate is ready to be dialed.
+	 */
+	synchronized void fill() {
+		int halfOpen = 0;
+		for (final Peer peer : this.dialed.keySet()) {
+			if (!peer.isHandshakeComplete()) {
+				halfOpen++;
+			}
+		}
+		int free = Math.min(this.maxConnections, this.swarmSize)
+				- this.client.getPeerCount();
+		final long now = System.currentTimeMillis();
+		for (final Iterator<Candidate> it = this.candidates.values().iterator(); it
+				.hasNext() && (free > 0) && (halfOpen < this.maxHalfOpen);) {
+			final Candidate candidate = it.next();
+			if (candidate.dialed || (candidate.retryTime > now)) {
+				continue;
+			}
+			final Peer peer = new Peer(candidate.peerId, candidate.ip,
+					candidate.port, this.infoHash, this.clientId);
+			if (!this.client.connectPeer(peer)) {
+				// Already connected, e.g. the peer connected to the client
+				continue;
+			}
+			candidate.dialed = true;
+			this.dialed.put(peer, candidate);
+			halfOpen++;
+			free--;
+		}
+	}
+
+	/**
+	 * Frees the slot of a disconnected peer. A peer that never completed its
+	 * handshake is backed off; the slot is refilled right away.
+	 * 
+	 * @param peer
+	 *            the disconnected peer
+	 */
+	synchronized void disconnected(final Peer peer) {
+		final Candidate candidate = this.dialed.remove(peer);
+		if (candidate != null) {
+			candidate.dialed = false;
+			if (peer.isHandshakeComplete()) {
+				candidate.failures = 0;
+				candidate.retryTime = System.currentTimeMillis()
+						+ ConnectionManager.BASE_BACKOFF;
+			} else {
+				final long backoff = ConnectionManager.BASE_BACKOFF << Math
+						.min(candidate.failures,
+								ConnectionManager.MAX_BACKOFF_DOUBLINGS);
+				candidate.failures++;
+				candidate.retryTime = System.currentTimeMillis() + backoff;
+				ConnectionManager.LOGGER.info("Failed to connect to "
+						+ candidate.ip + ":" + candidate.port
+						+ ", retrying in " + backoff + " ms");
+			}
+		}
+		this.fill();
+	}
+}
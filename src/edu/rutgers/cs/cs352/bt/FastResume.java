@@ -0,0 +1,243 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes the fast-resume file kept next to the output file. The
+ * resume file holds the client's bitfield and the blocks of partially
+ * downloaded pieces, together with the size and modification time of each
+ * output file when it was written. As long as none of the output files has
+ * been touched since, the next start can trust the resume file instead of
+ * rechecking every piece.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class FastResume {
+
+	/**
+	 * Logger for the fast-resume file.
+	 */
+	private final static Logger LOGGER = Logger.getLogger(FastResume.class
+			.getName());
+
+	/**
+	 * Identifies a resume file: "RUBT".
+	 */
+	private static final int MAGIC = 0x52554254;
+
+	/**
+	 * The version of the resume file format. Version 3 stores the bitfield in
+	 * the bit order of the Bitfield message.
+	 */
+	private static final int VERSION = 3;
+
+	/**
+	 * The resume file.
+	 */
+	private final File resumeFile;
+
+	/**
+	 * The output files that the resume file describes.
+	 */
+	private final File[] outFiles;
+
+	/**
+	 * The info hash of the torrent.
+	 */
+	private final byte[] infoHash;
+
+	/**
+	 * The number of pieces in the torrent.
+	 */
+	private final int totalPieces;
+
+	/**
+	 * The resume state read back from a resume file.
+	 */
+	static class State {
+		private final byte[] bitfield;
+		private final List<Piece> partialPieces;
+
+		State(final byte[] bitfield, final List<Piece> partialPieces) {
+			this.bitfield = bitfield;
+			this.partialPieces = partialPieces;
+		}
+
+		/**
+		 * @return the client's bitfield
+		 */
+		byte[] getBitfield() {
+			return this.bitfield;
+		}
+
+		/**
+		 * @return the partially downloaded pieces
+		 */
+		List<Piece> getPartialPieces() {
+			return this.partialPieces;
+		}
+	}
+
+	/**
+	 * Creates a new fast-resume file for the output file.
+	 * 
+	 * @param outFileName
+	 *            the name of the output file or directory
+	 * @param outFiles
+	 *            the output files
+	 * @param infoHash
+	 *            the info hash of the torrent
+	 * @param totalPieces
+	 *            the number of pieces in the torrent
+	 */
+	FastResume(final String outFileName, final File[] outFiles,
+			final byte[] infoHash, final int totalPieces) {
+		this.outFiles = outFiles;
+		this.resumeFile = new File(outFileName + ".resume");
+		this.infoHash = infoHash;
+		this.totalPieces = totalPieces;
+	}
+
+	/**
+	 * Writes the resume file. The output files must already be flushed to disk
+	 * so that their modification times are final.
+	 * 
+	 * @param bitfield
+	 *            the client's bitfield
+	 * @param partialPieces
+	 *            the partially downloaded pieces
+	 * @throws IOException
+	 */
+	synchronized void save(final byte[] bitfield,
+			final Collection<Piece> partialPieces) throws IOException {
+		final File tempFile = new File(this.resumeFile.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(FastResume.MAGIC);
+			out.writeInt(FastResume.VERSION);
+			out.write(this.infoHash);
+			out.writeInt(this.outFiles.length);
+			for (final File outFile : this.outFiles) {
+				out.writeLong(outFile.length());
+				out.writeLong(outFile.lastModified());
+			}
+
+			out.writeInt(bitfield.length);
+			out.write(bitfield);
+
+			// Pieces may still be receiving blocks, so copy each one under
+			// its own lock
+			final List<Piece> pieces = new ArrayList<Piece>(partialPieces);
+			out.writeInt(pieces.size());
+			for (final Piece piece : pieces) {
+				synchronized (piece) {
+					final byte[] received = piece.getReceivedBlocks();
+					out.writeInt(piece.getIndex());
+					out.writeInt(piece.getLength());
+					out.writeInt(received.length);
+					out.write(received);
+					out.write(piece.getData());
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		// Replace the old resume file only once the new one is complete
+		if (this.resumeFile.exists() && !this.resumeFile.delete()) {
+			throw new IOException("Unable to replace " + this.resumeFile);
+		}
+		if (!tempFile.renameTo(this.resumeFile)) {
+			throw new IOException("Unable to rename " + tempFile + " to "
+					+ this.resumeFile);
+		}
+		FastResume.LOGGER.info("Saved resume file with "
+				+ partialPieces.size() + " partial pieces");
+	}
+
+	/**
+	 * Reads the resume file, if there is one and it still matches the output
+	 * files.
+	 * 
+	 * @return the resume state, or {@code null} if the output file has to be
+	 *         rechecked
+	 */
+	synchronized State load() {
+		if (!this.resumeFile.exists()) {
+			return null;
+		}
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(this.resumeFile)));
+			try {
+				if ((in.readInt() != FastResume.MAGIC)
+						|| (in.readInt() != FastResume.VERSION)) {
+					FastResume.LOGGER.warning("Unknown resume file format");
+					return null;
+				}
+				final byte[] savedInfoHash = new byte[this.infoHash.length];
+				in.readFully(savedInfoHash);
+				if (!Arrays.equals(savedInfoHash, this.infoHash)) {
+					FastResume.LOGGER
+							.warning("Resume file is for another torrent");
+					return null;
+				}
+				if (in.readInt() != this.outFiles.length) {
+					return null;
+				}
+				for (final File outFile : this.outFiles) {
+					if ((in.readLong() != outFile.length())
+							|| (in.readLong() != outFile.lastModified())) {
+						FastResume.LOGGER.info(outFile
+								+ " changed since the resume file was saved");
+						return null;
+					}
+				}
+
+				final byte[] bitfield = new byte[in.readInt()];
+				if (bitfield.length != ((this.totalPieces + 7) / 8)) {
+					return null;
+				}
+				in.readFully(bitfield);
+
+				final int count = in.readInt();
+				final List<Piece> partialPieces = new ArrayList<Piece>(count);
+				for (int i = 0; i < count; i++) {
+					final int index = in.readInt();
+					final int length = in.readInt();
+					final byte[] received = new byte[in.readInt()];
+					in.readFully(received);
+					final Piece piece = new Piece(index, length);
+					in.readFully(piece.getData());
+					piece.restoreReceivedBlocks(received);
+					partialPieces.add(piece);
+				}
+				FastResume.LOGGER.info("Loaded resume file with "
+						+ partialPieces.size() + " partial pieces");
+				return new State(bitfield, partialPieces);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException ioe) {
+			FastResume.LOGGER.log(Level.WARNING,
+					"Unable to read resume file " + this.resumeFile, ioe);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stores the output file with positional {@link FileChannel} reads and writes.
+ * Uploads use
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so the kernel
+ * copies the file straight to the socket.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class FileStorage implements Storage {
+
+	/**
+	 * The channel of the output file.
+	 */
+	private final FileChannel file;
+
+	/**
+	 * Creates a new storage for an open file.
+	 * 
+	 * @param file
+	 *            the channel of the output file
+	 */
+	FileStorage(final FileChannel file) {
+		this.file = file;
+	}
+
+	@Override
+	public long length() {
+		try {
+			return this.file.size();
+		} catch (final IOException ioe) {
+			return 0;
+		}
+	}
+
+	@Override
+	public void read(final ByteBuffer dst, final long position)
+			throws IOException {
+		long offset = position;
+		while (dst.hasRemaining()) {
+			final int read = this.file.read(dst, offset);
+			if (read < 0) {
+				throw new EOFException("Output file ends at " + offset);
+			}
+			offset += read;
+		}
+	}
+
+	@Override
+	public void write(final ByteBuffer src, final long position)
+			throws IOException {
+		long offset = position;
+		while (src.hasRemaining()) {
+			offset += this.file.write(src, offset);
+		}
+	}
+
+	@Override
+	public long transferTo(final long position, final long count,
+			final WritableByteChannel target) throws IOException {
+		return this.file.transferTo(position, count, target);
+	}
+
+	@Override
+	public ByteBuffer view(final long position, final int count) {
+		// Only mapped files have views
+		return null;
+	}
+
+	@Override
+	public void force() throws IOException {
+		this.file.force(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.file.close();
+	}
+}
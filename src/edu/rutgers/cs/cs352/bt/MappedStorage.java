@@ -0,0 +1,163 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stores the output file in memory-mapped chunks, so that reads and writes are
+ * plain memory copies into the page cache and uploads are written to the
+ * socket straight from the mapping. A single {@link MappedByteBuffer} can't be
+ * larger than 2 GB, so the file is mapped as a series of
+ * {@link #CHUNK_LENGTH}-byte chunks and an access that crosses a chunk boundary
+ * is split between both chunks.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class MappedStorage implements Storage {
+
+	/**
+	 * The number of bits in a chunk offset.
+	 */
+	private static final int CHUNK_BITS = 30;
+
+	/**
+	 * The length of every chunk but the last, 1 GB.
+	 */
+	static final long CHUNK_LENGTH = 1L << MappedStorage.CHUNK_BITS;
+
+	/**
+	 * The channel of the output file, kept open for forcing and closing.
+	 */
+	private final FileChannel file;
+
+	/**
+	 * The length of the file.
+	 */
+	private final long length;
+
+	/**
+	 * The mapped chunks of the file, in order.
+	 */
+	private final MappedByteBuffer[] chunks;
+
+	/**
+	 * Maps an open file, which must already have its final length.
+	 * 
+	 * @param file
+	 *            the channel of the output file
+	 * @param length
+	 *            the length of the file
+	 * @throws IOException
+	 *             if the file couldn't be mapped
+	 */
+	MappedStorage(final FileChannel file, final long length) throws IOException {
+		this.file = file;
+		this.length = length;
+		final int count = (int) ((length + MappedStorage.CHUNK_LENGTH - 1) >>> MappedStorage.CHUNK_BITS);
+		this.chunks = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			final long start = i * MappedStorage.CHUNK_LENGTH;
+			this.chunks[i] = file.map(FileChannel.MapMode.READ_WRITE, start,
+					Math.min(MappedStorage.CHUNK_LENGTH, length - start));
+		}
+	}
+
+	@Override
+	public long length() {
+		return this.length;
+	}
+
+	/**
+	 * Gives a view of the file from the position to the end of its chunk, at
+	 * most {@code count} bytes long. Each call returns its own view, so
+	 * threads don't share buffer positions.
+	 * 
+	 * @param position
+	 *            the file position
+	 * @param count
+	 *            the maximum length of the view
+	 * @return the view
+	 * @throws EOFException
+	 *             if the position is at or past the end of the file
+	 */
+	private ByteBuffer chunkView(final long position, final long count)
+			throws EOFException {
+		if ((position < 0) || (position >= this.length)) {
+			throw new EOFException("Output file ends before " + position);
+		}
+		final ByteBuffer view = this.chunks[(int) (position >>> MappedStorage.CHUNK_BITS)]
+				.duplicate();
+		final int offset = (int) (position & (MappedStorage.CHUNK_LENGTH - 1));
+		view.position(offset);
+		view.limit((int) Math.min(view.limit(), offset + count));
+		return view;
+	}
+
+	@Override
+	public void read(final ByteBuffer dst, final long position)
+			throws IOException {
+		long offset = position;
+		while (dst.hasRemaining()) {
+			final ByteBuffer view = this.chunkView(offset, dst.remaining());
+			offset += view.remaining();
+			dst.put(view);
+		}
+	}
+
+	@Override
+	public void write(final ByteBuffer src, final long position)
+			throws IOException {
+		long offset = position;
+		final int limit = src.limit();
+		while (src.hasRemaining()) {
+			final ByteBuffer view = this.chunkView(offset, src.remaining());
+			offset += view.remaining();
+			src.limit(src.position() + view.remaining());
+			view.put(src);
+			src.limit(limit);
+		}
+	}
+
+	@Override
+	public long transferTo(final long position, final long count,
+			final WritableByteChannel target) throws IOException {
+		long written = 0;
+		while (written < count) {
+			final ByteBuffer view = this.chunkView(position + written, count
+					- written);
+			final int n = target.write(view);
+			written += n;
+			if (view.hasRemaining()) {
+				// Socket buffer is full
+				break;
+			}
+		}
+		return written;
+	}
+
+	@Override
+	public ByteBuffer view(final long position, final int count)
+			throws IOException {
+		final ByteBuffer view = this.chunkView(position, count);
+		// A range that crosses into the next chunk has no single view
+		return (view.remaining() == count) ? view : null;
+	}
+
+	@Override
+	public void force() throws IOException {
+		for (final MappedByteBuffer chunk : this.chunks) {
+			chunk.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// The mappings stay valid until they are garbage collected
+		this.file.close();
+	}
+}
@@ -1,8 +1,8 @@
 package edu.rutgers.cs.cs352.bt;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a Peer Wire Protocol message, specifically those after the
@@ -54,12 +54,34 @@ public class Message {
 	 * Message id value for Cancel messages.
 	 */
 	public static final byte ID_CANCEL = 8;
+	/**
+	 * Faux message id value for a peer disconnecting. Queued for the client by
+	 * the peer itself and never sent to a remote peer.
+	 */
+	public static final byte ID_DISCONNECT = 10;
+	/**
+	 * Faux message id value for the result of verifying a downloaded piece.
+	 * Queued for the client by the piece verifier and never sent to a remote
+	 * peer.
+	 */
+	public static final byte ID_VERIFIED = 11;
+	/**
+	 * Faux message id value for a block that arrived for a piece in endgame
+	 * mode, so that duplicate requests for it can be cancelled. Queued for the
+	 * client by the peer itself and never sent to a remote peer.
+	 */
+	public static final byte ID_RECEIVED = 12;
+	/**
+	 * Faux message id value for the periodic choking round. Queued for the
+	 * client by its timer and never sent to a remote peer.
+	 */
+	public static final byte ID_RECHOKE = 13;
 
 	/**
 	 * A keep-alive message.
 	 */
-	public static final Message KEEP_ALIVE = new Message(Message.ID_KEEP_ALIVE,
-			(byte) 0);
+	public static final Message KEEP_ALIVE = new Message(0,
+			Message.ID_KEEP_ALIVE);
 	/**
 	 * A choke message.
 	 */
@@ -78,89 +100,166 @@ public class Message {
 	 */
 	public static final Message UNINTERESTED = new Message(1,
 			Message.ID_UNINTERESTED);
+	/**
+	 * A choking round notification for the client.
+	 */
+	public static final Message RECHOKE = new Message(0, Message.ID_RECHOKE);
+	/**
+	 * A disconnect notification for the client.
+	 */
+	public static final Message DISCONNECT = new Message(0,
+			Message.ID_DISCONNECT);
 
 	public static final String[] ID_NAMES = { "Choke", "Unchoke", "Interested",
 			"Uninterested", "Have", "Bitfield", "Request", "Piece", "Cancel",
-			"KeepAlive" };
+			"KeepAlive", "Disconnect", "Verified", "Received", "Rechoke" };
 
 	private final int length;
 
 	private final byte id;
 
+	/**
+	 * The encoded form of a message without a payload, which is the same
+	 * every time it is sent.
+	 */
+	private final ByteBuffer encoded;
+
 	protected Message(final int length, final byte id) {
 		this.length = length;
 		this.id = id;
+		if (this.getClass() == Message.class) {
+			final ByteBuffer buf = ByteBuffer.allocate(4 + length);
+			this.encodeTo(buf);
+			buf.flip();
+			this.encoded = buf.asReadOnlyBuffer();
+		} else {
+			this.encoded = null;
+		}
 	}
 
 	/**
 	 * The superclass Message doesn't have any payload to write, so nothing will
 	 * be written.
 	 * 
-	 * @param dos
-	 * @throws IOException
+	 * @param buf
+	 *            the buffer to write the payload to
 	 */
-	public void writePayload(final DataOutputStream dos) throws IOException {
+	public void writePayload(final ByteBuffer buf) {
 		// Nothing here
 	}
 
+	/**
+	 * @return the length of the encoded message, including its length prefix
+	 */
+	public int getEncodedLength() {
+		return 4 + this.length;
+	}
+
 	public byte getId() {
 		return this.id;
 	}
 
 	/**
-	 * Reads the next Peer message from the provided DataInputStream.
+	 * Reads the next Peer message from the provided buffer. The buffer must be
+	 * positioned at the length prefix of a frame that has been received in
+	 * full; on return it is positioned at the start of the following frame.
 	 * 
-	 * @param din
-	 *            the input stream to read
-	 * @return the decoded message to {@code null} if an
+	 * @param buf
+	 *            the buffer holding at least one complete frame
+	 * @return the decoded message or {@code null} if the message type is
+	 *         unknown
 	 */
-	public static Message read(final DataInputStream din) throws IOException {
-		final int length = din.readInt();
+	public static Message read(final ByteBuffer buf) throws IOException {
+		final int length = buf.getInt();
 		if (length == 0) {
 			return Message.KEEP_ALIVE;
 		}
+		final int end = buf.position() + length;
 		// Read type
-		final byte type = din.readByte();
+		final byte type = buf.get();
 
 		int pieceIndex;
 		int blockOffset;
 		int blockLength;
 		byte[] block;
 
-		switch (type) {
-		case ID_CHOKE:
-			return Message.CHOKE;
-		case ID_UNCHOKE:
-			return Message.UNCHOKE;
-		case ID_INTERESTED:
-			return Message.INTERESTED;
-		case ID_UNINTERESTED:
-			return Message.UNINTERESTED;
-		case ID_HAVE:
-			pieceIndex = din.readInt();
-			return new HaveMessage(pieceIndex);
-		case ID_BITFIELD:
-			final byte[] bitfield = new byte[length - 1];
-			din.readFully(bitfield);
-			return new BitfieldMessage(length, bitfield);
-		case ID_REQUEST:
-			pieceIndex = din.readInt();
-			blockOffset = din.readInt();
-			blockLength = din.readInt();
-			return new RequestMessage(pieceIndex, blockOffset, blockLength);
-		case ID_PIECE:
-			pieceIndex = din.readInt();
-			blockOffset = din.readInt();
-			block = new byte[length - 9];
-			din.readFully(block);
-			return new PieceMessage(pieceIndex, blockOffset, block);
-		default:
-			break;
+		try {
+			switch (type) {
+			case ID_CHOKE:
+				Message.checkLength(type, length, 1);
+				return Message.CHOKE;
+			case ID_UNCHOKE:
+				Message.checkLength(type, length, 1);
+				return Message.UNCHOKE;
+			case ID_INTERESTED:
+				Message.checkLength(type, length, 1);
+				return Message.INTERESTED;
+			case ID_UNINTERESTED:
+				Message.checkLength(type, length, 1);
+				return Message.UNINTERESTED;
+			case ID_HAVE:
+				Message.checkLength(type, length, 5);
+				pieceIndex = buf.getInt();
+				return new HaveMessage(pieceIndex);
+			case ID_BITFIELD:
+				final byte[] bitfield = new byte[length - 1];
+				buf.get(bitfield);
+				return new BitfieldMessage(bitfield.length, bitfield);
+			case ID_REQUEST:
+				Message.checkLength(type, length, 13);
+				pieceIndex = buf.getInt();
+				blockOffset = buf.getInt();
+				blockLength = buf.getInt();
+				return new RequestMessage(pieceIndex, blockOffset, blockLength);
+			case ID_PIECE:
+				if (length < 9) {
+					throw new IOException("Invalid length " + length
+							+ " for message type " + type);
+				}
+				pieceIndex = buf.getInt();
+				blockOffset = buf.getInt();
+				blockLength = length - 9;
+				block = new byte[blockLength];
+				buf.get(block);
+				return new PieceMessage(pieceIndex, blockOffset, block);
+			case ID_CANCEL:
+				Message.checkLength(type, length, 13);
+				pieceIndex = buf.getInt();
+				blockOffset = buf.getInt();
+				blockLength = buf.getInt();
+				return new CancelMessage(pieceIndex, blockOffset, blockLength);
+			default:
+				break;
+			}
+		} finally {
+			// Skip anything left of the frame, e.g. an unknown payload
+			buf.position(end);
 		}
 
 		return null;
 	}
 
+	/**
+	 * Checks the length of a frame whose message type has a fixed length, so
+	 * that a short frame can't be decoded from the bytes of the next one.
+	 * 
+	 * @param type
+	 *            the message type
+	 * @param length
+	 *            the length of the frame after its length prefix
+	 * @param expected
+	 *            the length of a message of this type
+	 * @throws IOException
+	 *             if the lengths don't match
+	 */
+	private static void checkLength(final byte type, final int length,
+			final int expected) throws IOException {
+		if (length != expected) {
+			throw new IOException("Invalid length " + length
+					+ " for message type " + type);
+		}
+	}
+
 	/**
 	 * Writes this message to the provided DataOutputStream.
 	 * 
@@ -170,15 +269,46 @@ public class Message {
 	 *             if an IOException occurs.
 	 */
 	public void write(final DataOutputStream dout) throws IOException {
-		dout.writeInt(this.length);
+		// Left to the caller to flush, so that messages can be batched
+		final ByteBuffer buf = this.encode();
+		final byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		dout.write(bytes);
+	}
+
+	/**
+	 * Encodes this message, including its length prefix, at the buffer's
+	 * position, e.g. into a buffer that is reused for several messages.
+	 * 
+	 * @param buf
+	 *            the buffer with at least {@link #getEncodedLength()} bytes
+	 *            remaining
+	 */
+	public void encodeTo(final ByteBuffer buf) {
+		buf.putInt(this.length);
 		if (this.length > 0) {
-			dout.writeByte(this.id);
+			buf.put(this.id);
 			// Write payload for Have, Bitfield, Request, Piece, Cancel
 			// messages
-			this.writePayload(dout);
+			this.writePayload(buf);
 		}
+	}
 
-		dout.flush();
+	/**
+	 * Encodes this message, including its length prefix, into a buffer that
+	 * is ready to be written to a channel. Messages without a payload are
+	 * encoded once and shared.
+	 * 
+	 * @return the encoded message, flipped for reading
+	 */
+	public ByteBuffer encode() {
+		if (this.encoded != null) {
+			return this.encoded.duplicate();
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(this.getEncodedLength());
+		this.encodeTo(buf);
+		buf.flip();
+		return buf;
 	}
 
 	/*
@@ -211,8 +341,8 @@ public class Message {
 		}
 
 		@Override
-		public void writePayload(final DataOutputStream dos) throws IOException {
-			dos.writeInt(this.pieceIndex);
+		public void writePayload(final ByteBuffer buf) {
+			buf.putInt(this.pieceIndex);
 		}
 
 		/*
@@ -247,8 +377,8 @@ public class Message {
 		}
 
 		@Override
-		public void writePayload(final DataOutputStream dos) throws IOException {
-			dos.write(this.bitfield);
+		public void writePayload(final ByteBuffer buf) {
+			buf.put(this.bitfield);
 		}
 
 		/*
@@ -312,10 +442,10 @@ public class Message {
 		}
 
 		@Override
-		public void writePayload(final DataOutputStream dos) throws IOException {
-			dos.writeInt(this.pieceIndex);
-			dos.writeInt(this.blockOffset);
-			dos.writeInt(this.blockLength);
+		public void writePayload(final ByteBuffer buf) {
+			buf.putInt(this.pieceIndex);
+			buf.putInt(this.blockOffset);
+			buf.putInt(this.blockLength);
 		}
 
 		/*
@@ -337,6 +467,70 @@ public class Message {
 		}
 	}
 
+	/**
+	 * A cancel message.
+	 * 
+	 */
+	public static class CancelMessage extends Message {
+		/**
+		 * The integer specifying the zero-based piece index.
+		 */
+		private final int pieceIndex;
+		/**
+		 * The integer specifying the zero-based byte offset within the piece.
+		 */
+		private final int blockOffset;
+		/**
+		 * The integer specifying the requested length.
+		 */
+		private final int blockLength;
+
+		public CancelMessage(final int pieceIndex, final int blockOffset,
+				final int blockLength) {
+			super(13, Message.ID_CANCEL);
+			this.pieceIndex = pieceIndex;
+			this.blockOffset = blockOffset;
+			this.blockLength = blockLength;
+		}
+
+		public int getPieceIndex() {
+			return this.pieceIndex;
+		}
+
+		public int getBlockOffset() {
+			return this.blockOffset;
+		}
+
+		public int getBlockLength() {
+			return this.blockLength;
+		}
+
+		@Override
+		public void writePayload(final ByteBuffer buf) {
+			buf.putInt(this.pieceIndex);
+			buf.putInt(this.blockOffset);
+			buf.putInt(this.blockLength);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder();
+			builder.append("CancelMessage [pieceIndex=");
+			builder.append(this.pieceIndex);
+			builder.append(", blockOffset=");
+			builder.append(this.blockOffset);
+			builder.append(", blockLength=");
+			builder.append(this.blockLength);
+			builder.append("]");
+			return builder.toString();
+		}
+	}
+
 	/**
 	 * A piece message.
 	 * 
@@ -375,11 +569,15 @@ public class Message {
 			return this.block;
 		}
 
+		public int getBlockLength() {
+			return this.block.length;
+		}
+
 		@Override
-		public void writePayload(final DataOutputStream dos) throws IOException {
-			dos.writeInt(this.pieceIndex);
-			dos.writeInt(this.blockOffset);
-			dos.write(this.block);
+		public void writePayload(final ByteBuffer buf) {
+			buf.putInt(this.pieceIndex);
+			buf.putInt(this.blockOffset);
+			buf.put(this.block);
 		}
 
 		/*
@@ -395,10 +593,110 @@ public class Message {
 			builder.append(", blockOffset=");
 			builder.append(this.blockOffset);
 			builder.append(", ");
-			if (this.block != null) {
-				builder.append("blockLength=");
-				builder.append(this.block.length);
-			}
+			builder.append("blockLength=");
+			builder.append(this.block.length);
+			builder.append("]");
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * The result of verifying a downloaded piece.
+	 * 
+	 */
+	public static class VerifiedMessage extends Message {
+		/**
+		 * The integer specifying the zero-based piece index.
+		 */
+		private final int pieceIndex;
+		/**
+		 * True if the piece matched its hash and was written to the file.
+		 */
+		private final boolean verified;
+
+		public VerifiedMessage(final int pieceIndex, final boolean verified) {
+			super(0, Message.ID_VERIFIED);
+			this.pieceIndex = pieceIndex;
+			this.verified = verified;
+		}
+
+		public int getPieceIndex() {
+			return this.pieceIndex;
+		}
+
+		public boolean isVerified() {
+			return this.verified;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder();
+			builder.append("VerifiedMessage [pieceIndex=");
+			builder.append(this.pieceIndex);
+			builder.append(", verified=");
+			builder.append(this.verified);
+			builder.append("]");
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * A block that arrived for a piece in endgame mode.
+	 * 
+	 */
+	public static class ReceivedMessage extends Message {
+		/**
+		 * The integer specifying the zero-based piece index.
+		 */
+		private final int pieceIndex;
+		/**
+		 * The integer specifying the zero-based byte offset within the piece.
+		 */
+		private final int blockOffset;
+		/**
+		 * The integer specifying the block length.
+		 */
+		private final int blockLength;
+
+		public ReceivedMessage(final int pieceIndex, final int blockOffset,
+				final int blockLength) {
+			super(0, Message.ID_RECEIVED);
+			this.pieceIndex = pieceIndex;
+			this.blockOffset = blockOffset;
+			this.blockLength = blockLength;
+		}
+
+		public int getPieceIndex() {
+			return this.pieceIndex;
+		}
+
+		public int getBlockOffset() {
+			return this.blockOffset;
+		}
+
+		public int getBlockLength() {
+			return this.blockLength;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder();
+			builder.append("ReceivedMessage [pieceIndex=");
+			builder.append(this.pieceIndex);
+			builder.append(", blockOffset=");
+			builder.append(this.blockOffset);
+			builder.append(", blockLength=");
+			builder.append(this.blockLength);
 			builder.append("]");
 			return builder.toString();
 		}
@@ -0,0 +1,366 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Stores the files of a multi-file torrent. The torrent's pieces run through
+ * the files back to back, so every access is first split into spans, one per
+ * file that it touches, by a binary search over the start offsets of the
+ * files. Each span is then read or written with positional
+ * {@link FileChannel} calls on its own file.
+ * 
+ * Torrents may hold more files than the process may keep open, so at most
+ * {@link #MAX_OPEN_FILES} channels are kept open and the least recently used
+ * channel is forced and closed to make room, so {@link #force()} only has the
+ * open channels left to sync. An access whose channel was closed under it by
+ * another thread simply reopens the file and carries on.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class MultiFileStorage implements Storage {
+
+	/**
+	 * The maximum number of files kept open at once.
+	 */
+	static final int MAX_OPEN_FILES = 128;
+
+	/**
+	 * The part of an access that falls within a single file.
+	 */
+	static class Span {
+		private final int file;
+		private final long offset;
+		private final int length;
+
+		Span(final int file, final long offset, final int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return the index of the file
+		 */
+		int getFile() {
+			return this.file;
+		}
+
+		/**
+		 * @return the offset of the span within the file
+		 */
+		long getOffset() {
+			return this.offset;
+		}
+
+		/**
+		 * @return the length of the span
+		 */
+		int getLength() {
+			return this.length;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Span [file=" + this.file + ", offset=" + this.offset
+					+ ", length=" + this.length + "]";
+		}
+	}
+
+	/**
+	 * The files, in torrent order.
+	 */
+	private final File[] files;
+
+	/**
+	 * The position within the torrent at which each file starts.
+	 */
+	private final long[] starts;
+
+	/**
+	 * The length of each file.
+	 */
+	private final long[] lengths;
+
+	/**
+	 * The total length of all files.
+	 */
+	private final long length;
+
+	/**
+	 * The open channels by file index, least recently used first.
+	 */
+	private final LinkedHashMap<Integer, FileChannel> open = new LinkedHashMap<Integer, FileChannel>(
+			16, 0.75f, true);
+
+	/**
+	 * Set once the storage is closed.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates the storage, creating any missing directories and allocating
+	 * each file to its length.
+	 * 
+	 * @param files
+	 *            the files in torrent order
+	 * @param lengths
+	 *            the length of each file
+	 * @throws IOException
+	 *             if a file couldn't be created
+	 */
+	MultiFileStorage(final File[] files, final long[] lengths)
+			throws IOException {
+		this.files = files;
+		this.lengths = lengths;
+		this.starts = new long[files.length];
+		long start = 0;
+		for (int i = 0; i < files.length; i++) {
+			this.starts[i] = start;
+			start += lengths[i];
+
+			final File parent = files[i].getParentFile();
+			if ((parent != null) && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Unable to create directory " + parent);
+			}
+			final RandomAccessFile file = new RandomAccessFile(files[i], "rw");
+			try {
+				if (file.length() != lengths[i]) {
+					file.setLength(lengths[i]);
+				}
+			} finally {
+				file.close();
+			}
+		}
+		this.length = start;
+	}
+
+	@Override
+	public long length() {
+		return this.length;
+	}
+
+	/**
+	 * Finds the file that holds the byte at the position. Empty files hold no
+	 * bytes and are never returned.
+	 * 
+	 * @param position
+	 *            the position within the torrent
+	 * @return the index of the file
+	 */
+	private int findFile(final long position) {
+		// Last file starting at or before the position; of several files
+		// starting at the same position, only the last one can be non-empty
+		int low = 0;
+		int high = this.starts.length - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (this.starts[middle] <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Splits an access into the spans of the files that it touches.
+	 * 
+	 * @param position
+	 *            the position within the torrent
+	 * @param count
+	 *            the length of the access
+	 * @return the spans in order
+	 * @throws IOException
+	 *             if the access runs past the last file
+	 */
+	List<Span> spans(final long position, final long count)
+			throws IOException {
+		if ((position < 0) || ((position + count) > this.length)) {
+			throw new IOException("Access [position=" + position + ", count="
+					+ count + "] is outside of the torrent");
+		}
+		final List<Span> spans = new ArrayList<Span>(2);
+		long done = 0;
+		int file = this.findFile(position);
+		while (done < count) {
+			final long offset = (position + done) - this.starts[file];
+			final long available = this.lengths[file] - offset;
+			if (available > 0) {
+				final int spanLength = (int) Math.min(available, count - done);
+				spans.add(new Span(file, offset, spanLength));
+				done += spanLength;
+			}
+			file++;
+		}
+		return spans;
+	}
+
+	/**
+	 * Gives the open channel of a file, opening it if needed. Opening a file
+	 * when {@link #MAX_OPEN_FILES} are open first forces and closes the least
+	 * recently used one.
+	 * 
+	 * @param file
+	 *            the index of the file
+	 * @return the channel
+	 * @throws IOException
+	 *             if the file couldn't be opened, the evicted file couldn't be
+	 *             forced, or the storage is closed
+	 */
+	private FileChannel channel(final int file) throws IOException {
+		synchronized (this.open) {
+			if (this.closed) {
+				throw new ClosedChannelException();
+			}
+			FileChannel channel = this.open.get(file);
+			if (channel == null) {
+				if (this.open.size() >= MultiFileStorage.MAX_OPEN_FILES) {
+					final Iterator<FileChannel> eldest = this.open.values()
+							.iterator();
+					final FileChannel evicted = eldest.next();
+					eldest.remove();
+					try {
+						evicted.force(false);
+					} finally {
+						evicted.close();
+					}
+				}
+				channel = new RandomAccessFile(this.files[file], "rw")
+						.getChannel();
+				this.open.put(file, channel);
+			}
+			return channel;
+		}
+	}
+
+	@Override
+	public void read(final ByteBuffer dst, final long position)
+			throws IOException {
+		final int limit = dst.limit();
+		try {
+			for (final Span span : this.spans(position, dst.remaining())) {
+				dst.limit(dst.position() + span.length);
+				long offset = span.offset;
+				while (dst.hasRemaining()) {
+					try {
+						final int read = this.channel(span.file).read(dst,
+								offset);
+						if (read < 0) {
+							throw new IOException(this.files[span.file]
+									+ " is shorter than expected");
+						}
+						offset += read;
+					} catch (final ClosedChannelException cce) {
+						// Closed to make room for another file
+						if (this.closed) {
+							throw cce;
+						}
+					}
+				}
+				dst.limit(limit);
+			}
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	@Override
+	public void write(final ByteBuffer src, final long position)
+			throws IOException {
+		final int limit = src.limit();
+		try {
+			for (final Span span : this.spans(position, src.remaining())) {
+				src.limit(src.position() + span.length);
+				long offset = span.offset;
+				while (src.hasRemaining()) {
+					try {
+						offset += this.channel(span.file).write(src, offset);
+					} catch (final ClosedChannelException cce) {
+						// Closed to make room for another file
+						if (this.closed) {
+							throw cce;
+						}
+					}
+				}
+				src.limit(limit);
+			}
+		} finally {
+			src.limit(limit);
+		}
+	}
+
+	@Override
+	public long transferTo(final long position, final long count,
+			final WritableByteChannel target) throws IOException {
+		long written = 0;
+		for (final Span span : this.spans(position, count)) {
+			long spanWritten = 0;
+			while (spanWritten < span.length) {
+				long n;
+				try {
+					n = this.channel(span.file).transferTo(
+							span.offset + spanWritten,
+							span.length - spanWritten, target);
+				} catch (final ClosedChannelException cce) {
+					// Closed to make room for another file
+					if (this.closed) {
+						throw cce;
+					}
+					continue;
+				}
+				if (n <= 0) {
+					// Socket buffer is full
+					return written + spanWritten;
+				}
+				spanWritten += n;
+			}
+			written += spanWritten;
+		}
+		return written;
+	}
+
+	@Override
+	public ByteBuffer view(final long position, final int count) {
+		// Only mapped files have views
+		return null;
+	}
+
+	@Override
+	public void force() throws IOException {
+		synchronized (this.open) {
+			for (final FileChannel channel : this.open.values()) {
+				channel.force(true);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this.open) {
+			this.closed = true;
+			final Iterator<FileChannel> channels = this.open.values()
+					.iterator();
+			while (channels.hasNext()) {
+				channels.next().close();
+				channels.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Data queued for writing to a peer's channel. Writes may be partial, so each
+ * item remembers how much of it is left and is written again on the next write
+ * readiness until it is done.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+abstract class Outbound {
+
+	/**
+	 * Writes as much of the data as the channel accepts.
+	 * 
+	 * @param channel
+	 *            the channel to write to
+	 * @return {@code true} once all of the data has been written
+	 * @throws IOException
+	 *             if the write fails
+	 */
+	abstract boolean writeTo(GatheringByteChannel channel) throws IOException;
+
+	/**
+	 * An encoded message held in a buffer.
+	 */
+	static class BufferOutbound extends Outbound {
+		private final ByteBuffer buf;
+
+		BufferOutbound(final ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		/**
+		 * @return the buffer, for writing together with the messages queued
+		 *         after it
+		 */
+		ByteBuffer getBuffer() {
+			return this.buf;
+		}
+
+		@Override
+		boolean writeTo(final GatheringByteChannel channel) throws IOException {
+			channel.write(this.buf);
+			return !this.buf.hasRemaining();
+		}
+	}
+
+	/**
+	 * A piece message whose block is sent straight from the output file, so
+	 * the block never passes through the Java heap. If the storage has a view
+	 * of the block, the header and the block go out in one gathering write;
+	 * otherwise the block follows the header with
+	 * {@link Storage#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 */
+	static class BlockOutbound extends Outbound {
+		/**
+		 * The length of the piece message header: length prefix, id, piece
+		 * index and block offset.
+		 */
+		static final int HEADER_LENGTH = 13;
+
+		private final int pieceIndex;
+		private final int blockOffset;
+		private final int blockLength;
+		private final ByteBuffer header;
+		private final Storage storage;
+		private long position;
+		private long remaining;
+		private ByteBuffer[] frame;
+		private volatile boolean cancelled = false;
+
+		/**
+		 * Creates a new block upload.
+		 * 
+		 * @param pieceIndex
+		 *            the zero-based piece index
+		 * @param blockOffset
+		 *            the offset of the block within the piece
+		 * @param blockLength
+		 *            the length of the block
+		 * @param storage
+		 *            the output file to read the block from
+		 * @param position
+		 *            the position of the block within the file
+		 */
+		BlockOutbound(final int pieceIndex, final int blockOffset,
+				final int blockLength, final Storage storage,
+				final long position) {
+			this.pieceIndex = pieceIndex;
+			this.blockOffset = blockOffset;
+			this.blockLength = blockLength;
+			this.storage = storage;
+			this.position = position;
+			this.remaining = blockLength;
+
+			this.header = ByteBuffer.allocate(BlockOutbound.HEADER_LENGTH);
+			this.header.putInt(9 + blockLength);
+			this.header.put(Message.ID_PIECE);
+			this.header.putInt(pieceIndex);
+			this.header.putInt(blockOffset);
+			this.header.flip();
+		}
+
+		int getPieceIndex() {
+			return this.pieceIndex;
+		}
+
+		int getBlockOffset() {
+			return this.blockOffset;
+		}
+
+		int getBlockLength() {
+			return this.blockLength;
+		}
+
+		/**
+		 * Drops the block unless part of it has already been written, in
+		 * which case the frame is finished. May be called from any thread;
+		 * the decision is made by the event loop when it gets to the block.
+		 */
+		void cancel() {
+			this.cancelled = true;
+		}
+
+		/**
+		 * @return {@code true} if the block was cancelled before any of it was
+		 *         written
+		 */
+		boolean isDropped() {
+			return this.cancelled && (this.header.position() == 0);
+		}
+
+		@Override
+		boolean writeTo(final GatheringByteChannel channel) throws IOException {
+			if (this.isDropped()) {
+				return true;
+			}
+			if ((this.frame == null) && (this.header.position() == 0)) {
+				final ByteBuffer view = this.storage.view(this.position,
+						this.blockLength);
+				if (view != null) {
+					this.frame = new ByteBuffer[] { this.header, view };
+				}
+			}
+			if (this.frame != null) {
+				channel.write(this.frame);
+				return !this.frame[1].hasRemaining();
+			}
+			if (this.header.hasRemaining()) {
+				channel.write(this.header);
+				if (this.header.hasRemaining()) {
+					return false;
+				}
+			}
+			while (this.remaining > 0) {
+				final long written = this.storage.transferTo(this.position,
+						this.remaining, channel);
+				if (written <= 0) {
+					// Socket buffer is full
+					return false;
+				}
+				this.position += written;
+				this.remaining -= written;
+			}
+			return true;
+		}
+	}
+}
@@ -1,32 +1,37 @@
 package edu.rutgers.cs.cs352.bt;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import edu.rutgers.cs.cs352.bt.Message.CancelMessage;
 import edu.rutgers.cs.cs352.bt.Message.PieceMessage;
+import edu.rutgers.cs.cs352.bt.Message.ReceivedMessage;
 import edu.rutgers.cs.cs352.bt.Message.RequestMessage;
-import edu.rutgers.cs.cs352.bt.util.Utility;
 
 /**
  * The peer class manages interfacing with a single peer, including connecting
- * and disconnecting, and messages between the peer and the client.
+ * and disconnecting, and messages between the peer and the client. Peers do
+ * not own a thread; their non-blocking channel is driven by one of the
+ * {@link PeerEngine} event loops.
  * 
  * @author Robert Moore
  * @author Julian Modesto
  * 
  */
-public class Peer extends Thread {
+public class Peer {
 
 	/**
 	 * The logger for this peer.
@@ -85,9 +90,118 @@ public class Peer extends Thread {
 	private final int port;
 
 	/**
-	 * The socket for this peer to the client.
+	 * Gives the port that the peer is listening on.
+	 * 
+	 * @return the peer port
+	 */
+	int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * The non-blocking channel for this peer to the client.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * The selection key of the channel within its event loop's selector.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * The event loop that drives this peer's channel.
+	 */
+	private PeerEngine.EventLoop eventLoop;
+
+	/**
+	 * The length of the handshake message.
+	 */
+	static final int HANDSHAKE_LENGTH = 68;
+
+	/**
+	 * The initial capacity of the read buffer; enough for a 16K block.
+	 */
+	private static final int READ_BUFFER_CAPACITY = 32768;
+
+	/**
+	 * The largest frame that will be accepted from a peer before it is
+	 * considered to be misbehaving.
+	 */
+	private static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	/**
+	 * Buffers bytes read from the channel until a whole frame is available.
+	 * Direct, so that the channel reads into it without an extra copy.
+	 */
+	private ByteBuffer readBuffer = ByteBuffer
+			.allocateDirect(Peer.READ_BUFFER_CAPACITY);
+
+	/**
+	 * Messages and block uploads waiting to be written to the channel.
+	 */
+	private final ConcurrentLinkedQueue<Outbound> outbound = new ConcurrentLinkedQueue<Outbound>();
+
+	/**
+	 * True once this peer has been disconnected.
+	 */
+	private boolean disconnected = false;
+
+	/**
+	 * True once the remote peer's handshake has been received and validated.
+	 * Read by the connection manager from other threads.
+	 */
+	private volatile boolean handshakeComplete = false;
+
+	/**
+	 * True once the client's main loop has handled this peer's disconnect and
+	 * stopped counting its pieces. Only used from the main loop.
+	 */
+	private boolean removed = false;
+
+	/**
+	 * The time in milliseconds to wait for a connection to be accepted.
+	 */
+	private static final long CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * The time in milliseconds to wait for the remote peer's handshake once
+	 * connected.
+	 */
+	private static final long HANDSHAKE_TIMEOUT = 10000;
+
+	/**
+	 * The time in milliseconds by which the connection or the handshake must
+	 * complete. Only used by the event loop.
+	 */
+	private long connectDeadline;
+
+	/**
+	 * @return {@code true} once the remote peer's handshake has been
+	 *         validated
+	 */
+	boolean isHandshakeComplete() {
+		return this.handshakeComplete;
+	}
+
+	/**
+	 * @return {@code true} once this peer has been disconnected
+	 */
+	synchronized boolean isDisconnected() {
+		return this.disconnected;
+	}
+
+	/**
+	 * Checks whether the connection or the handshake has taken too long.
+	 * Called from the event loop.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return {@code true} if the deadline passed before the handshake
+	 *         completed
 	 */
-	private Socket socket;
+	boolean isConnectTimedOut(final long now) {
+		return !this.handshakeComplete && (now > this.connectDeadline);
+	}
 
 	/**
 	 * Points to the queue of messages for the client to consume.
@@ -101,65 +215,82 @@ public class Peer extends Thread {
 	/**
 	 * This peer's bitfield.
 	 */
-	private byte[] bitfield;
+	private Bitfield bitfield;
 
 	/**
-	 * The block size that will be requested, 16K.
+	 * The default number of block requests kept outstanding with a peer.
 	 */
-	private static final int BLOCK_LENGTH = 16384; // = 16Kb
+	static final int DEFAULT_REQUEST_WINDOW = 10;
 
 	/**
-	 * The byte array for the piece that this peer is currently building.
-	 */
-	private byte[] piece;
-	/**
-	 * The length of the piece that this peer is working on.
-	 */
-	private int pieceLength;
-	/**
-	 * The piece index of the piece within the file that is of interest to this
-	 * peer.
+	 * The maximum number of block requests kept outstanding with this peer.
 	 */
-	private int pieceIndex;
+	private int requestWindow = Peer.DEFAULT_REQUEST_WINDOW;
+
 	/**
-	 * The current block offset at which the peer will request the next block
-	 * for.
+	 * The pieces that this peer is currently requesting blocks of.
 	 */
-	private int blockOffset;
+	private final LinkedList<Piece> pieces = new LinkedList<Piece>();
+
 	/**
-	 * The length of the final block in this piece, as determined by the block
-	 * length and piece length.
+	 * The block requests that have been sent and not yet answered.
 	 */
-	private int lastBlockLength;
+	private final LinkedList<RequestMessage> outstanding = new LinkedList<RequestMessage>();
 
 	/**
 	 * Returns the current bitfield for this peer.
 	 * 
 	 * @return the bitfield
 	 */
-	synchronized byte[] getBitfield() {
+	synchronized Bitfield getBitfield() {
 		return this.bitfield;
 	}
 
+	/**
+	 * Determines whether this peer has announced a piece.
+	 * 
+	 * @param pieceIndex
+	 *            the zero-based piece index
+	 * @return {@code true} if this peer has the piece
+	 */
+	boolean hasPiece(final int pieceIndex) {
+		final Bitfield peerBitfield = this.getBitfield();
+		return (peerBitfield != null) && peerBitfield.get(pieceIndex);
+	}
+
+	/**
+	 * @return {@code true} once the client has removed this peer
+	 */
+	boolean isRemoved() {
+		return this.removed;
+	}
+
+	/**
+	 * Marks this peer as removed by the client, so that messages still queued
+	 * from it no longer change piece availability.
+	 */
+	void setRemoved() {
+		this.removed = true;
+	}
+
 	/**
 	 * Sets a bit according to its position in the peer's bitfield.
 	 * 
 	 * @param bit
 	 *            the bit to set
+	 * @return {@code true} if the bit wasn't set before
 	 */
-	void setBitfieldBit(final int bit) {
-		byte[] tempBitfield = this.getBitfield();
-		tempBitfield = Utility.setBit(tempBitfield, bit);
-		this.setBitfield(tempBitfield);
+	boolean setBitfieldBit(final int bit) {
+		return this.getBitfield().set(bit);
 	}
 
 	/**
-	 * Sets the passed byte array as the peer's updated bitfield.
+	 * Sets the peer's updated bitfield.
 	 * 
 	 * @param bitfield
 	 *            the bitfield to set
 	 */
-	synchronized void setBitfield(final byte[] bitfield) {
+	synchronized void setBitfield(final Bitfield bitfield) {
 		this.bitfield = bitfield;
 	}
 
@@ -171,10 +302,7 @@ public class Peer extends Thread {
 	 *            the number of pieces as specified by the torrent
 	 */
 	void initializeBitfield(final int totalPieces) {
-		final int bytes = (int) Math.ceil((double) totalPieces / 8);
-		final byte[] tempBitfield = new byte[bytes];
-
-		this.setBitfield(tempBitfield);
+		this.setBitfield(new Bitfield(totalPieces));
 	}
 
 	/**
@@ -220,15 +348,6 @@ public class Peer extends Thread {
 	 */
 	private boolean remoteChoked = true;
 
-	/**
-	 * The input stream for the socket to the peer.
-	 */
-	private DataInputStream in = null;
-	/**
-	 * The output stream for the socket to the peer.
-	 */
-	private DataOutputStream out = null;
-
 	/**
 	 * Returns the current Interested state of the LOCAL CLIENT.
 	 * 
@@ -255,7 +374,7 @@ public class Peer extends Thread {
 	 *         PEER's pieces
 	 */
 	boolean remoteInterested() {
-		return this.localInterested;
+		return this.remoteInterested;
 	}
 
 	/**
@@ -264,7 +383,7 @@ public class Peer extends Thread {
 	 * @return {@code true} if the REMOTE CLIENT is choked by the LOCAL PEER.
 	 */
 	boolean remoteChoked() {
-		return this.localChoked;
+		return this.remoteChoked;
 	}
 
 	/**
@@ -299,35 +418,120 @@ public class Peer extends Thread {
 		this.remoteChoked = remoteChoked;
 	}
 
-	// Set up timer
 	/**
-	 * The timeout length at which a keep alive message should be sent.
+	 * Measures the rate at which the remote peer sends blocks to the client.
 	 */
-	private static final long KEEP_ALIVE_TIMEOUT = 120000;
+	private final RateMeter downloadMeter = new RateMeter();
+
+	/**
+	 * Measures the rate at which the client sends blocks to the remote peer.
+	 */
+	private final RateMeter uploadMeter = new RateMeter();
+
+	/**
+	 * The client's bandwidth limiter, or {@code null} for no limits.
+	 */
+	private BandwidthLimiter limiter;
+
 	/**
-	 * The timer for sending keep alives to the peer.
+	 * Limits the rate of writes to this peer below the global upload limit.
 	 */
-	private final Timer keepAliveTimer = new Timer();
+	private final TokenBucket uploadBucket = new TokenBucket();
+
+	/**
+	 * Limits the rate of reads from this peer below the global download
+	 * limit.
+	 */
+	private final TokenBucket downloadBucket = new TokenBucket();
+
+	/**
+	 * The most bytes that are taken from the upload buckets for a single
+	 * write readiness.
+	 */
+	private static final int WRITE_QUANTUM = 65536;
+
+	/**
+	 * The most queued messages that are written together in one gathering
+	 * write.
+	 */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * The buffers of the messages being written together, reused for every
+	 * gathering write. Only used by the event loop.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[Peer.MAX_GATHER];
+
+	/**
+	 * True while reads are paused because the download buckets are empty.
+	 * Only used by the event loop.
+	 */
+	private boolean readThrottled = false;
+
+	/**
+	 * True while writes are paused because the upload buckets are empty.
+	 * Only used by the event loop.
+	 */
+	private boolean writeThrottled = false;
+
+	/**
+	 * @return the recent rate at which this peer sends blocks, in bytes per
+	 *         second
+	 */
+	long getDownloadRate() {
+		return this.downloadMeter.getRate();
+	}
+
+	/**
+	 * @return the recent rate at which blocks are sent to this peer, in bytes
+	 *         per second
+	 */
+	long getUploadRate() {
+		return this.uploadMeter.getRate();
+	}
+
+	/**
+	 * Chokes the remote peer. Its pending requests are discarded, so uploads
+	 * that haven't started are dropped.
+	 * 
+	 * @throws IOException
+	 */
+	void choke() throws IOException {
+		this.setRemoteChoked(true);
+		for (final Outbound data : this.outbound) {
+			if (data instanceof Outbound.BlockOutbound) {
+				((Outbound.BlockOutbound) data).cancel();
+			}
+		}
+		this.sendMessage(Message.CHOKE);
+	}
+
+	/**
+	 * The timeout length at which a keep alive message should be sent.
+	 */
+	private static final long KEEP_ALIVE_TIMEOUT = 120000;
 	/**
 	 * The last time in milliseconds that a message was sent to the peer.
 	 */
-	private long lastMessageTime = System.currentTimeMillis();
+	private volatile long lastMessageTime = System.currentTimeMillis();
 
 	/**
-	 * Sends the provided message to this remote peer.
+	 * Sends the provided message to this remote peer. The message is queued
+	 * and written by the peer's event loop, so the caller never blocks on the
+	 * socket.
 	 * 
 	 * @param msg
 	 *            the Peer message to send
 	 * @throws IOException
-	 *             if an Exception is thrown by the underlying write operation.
+	 *             if the peer is not connected or the message can't be encoded
 	 */
-	synchronized void sendMessage(final Message msg) throws IOException {
-		if (this.out == null) {
-			throw new IOException(
-					"Output stream is null, cannot write message to " + this);
+	void sendMessage(final Message msg) throws IOException {
+		if ((this.channel == null) || !this.channel.isOpen()) {
+			throw new IOException("Channel is closed, cannot write message to "
+					+ this);
 		}
 
-		msg.write(this.out);
+		this.queue(new Outbound.BufferOutbound(msg.encode()));
 
 		// Update time stamp for keep-alive message timer
 		this.lastMessageTime = System.currentTimeMillis();
@@ -336,128 +540,454 @@ public class Peer extends Thread {
 	}
 
 	/**
-	 * Flag to keep the main loop running. Once false, the peer *should* exit.
+	 * Sends the client's bitfield to this remote peer, encoded from a snapshot
+	 * of the pieces that the client has.
+	 * 
+	 * @throws IOException
+	 *             if the peer is not connected
 	 */
-	private volatile boolean keepRunning = true;
+	private void sendBitfield() throws IOException {
+		final byte[] bitfield = this.client.getBitfield().toByteArray();
+		this.sendMessage(new Message.BitfieldMessage(bitfield.length, bitfield));
+	}
 
-	@Override
-	public void run() {
-		try {
-			// Connect
-			this.connect();
-
-			/*
-			 * Schedules a new anonymous implementation of a TimerTask that will
-			 * start now and execute every 10 seconds afterward.
-			 */
-			this.keepAliveTimer.scheduleAtFixedRate(new TimerTask() {
-				@Override
-				public void run() {
-					// Let the peer figure out how/when to send a keep-alive
-					try {
-						Peer.this.checkAndSendKeepAlive();
-					} catch (final Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
+	/**
+	 * Sends a block to this remote peer as a Piece message. The block is
+	 * transferred from the output file to the socket by the event loop without
+	 * being copied into a heap array.
+	 * 
+	 * @param pieceIndex
+	 *            the zero-based piece index
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 * @param blockLength
+	 *            the length of the block
+	 * @param storage
+	 *            the output file holding the block
+	 * @param position
+	 *            the position of the block within the file
+	 * @throws IOException
+	 *             if the peer is not connected
+	 */
+	void sendBlock(final int pieceIndex, final int blockOffset,
+			final int blockLength, final Storage storage, final long position)
+			throws IOException {
+		if ((this.channel == null) || !this.channel.isOpen()) {
+			throw new IOException("Channel is closed, cannot upload block to "
+					+ this);
+		}
 
-			}, new Date(), 10000);
+		this.queue(new Outbound.BlockOutbound(pieceIndex, blockOffset,
+				blockLength, storage, position));
 
-			// Send handshake
-			final byte[] myHandshake = this.getHandshake();
-			this.out.write(myHandshake);
-			this.out.flush();
+		// Update time stamp for keep-alive message timer
+		this.lastMessageTime = System.currentTimeMillis();
 
-			// Read response
-			final byte[] peerHandshake = new byte[68];
-			this.in.readFully(peerHandshake);
+		Peer.LOGGER.info("Sent block [pieceIndex=" + pieceIndex
+				+ ", blockOffset=" + blockOffset + ", blockLength="
+				+ blockLength + "] to " + this);
+	}
 
-			// Validate handshake
-			if (!this.validateHandshake(peerHandshake)) {
-				Peer.LOGGER.warning("Handshake is incorrect.");
-				this.disconnect();
-			} else {
-				this.sendMessage(new Message.BitfieldMessage(this.client
-						.getBitfield().length, this.client.getBitfield()));
-				while (this.keepRunning) {
-					// read message from socket
-					try {
-						final Message msg = Message.read(this.in);
-						Peer.LOGGER.info("Decoded " + msg);
-						// Handle the message received
-						if (msg.getId() == Message.ID_PIECE) {
-							// Take the Piece Message and build blocks into a
-							// piece
-							this.buildPiece(msg);
-						} else {
-							// Queue Message as a MessageTask with the local
-							// client
-							Peer.LOGGER.info("Queued message: " + msg);
-							this.tasks.put(new MessageTask(this, msg));
-						}
-					} catch (final EOFException eofe) {
-					} catch (final IOException ioe) {
-						// TODO Auto-generated catch block
-						ioe.printStackTrace();
-						// TODO remove break and handle I/O Exception properly
-						break;
-					} catch (final InterruptedException ie) {
-						// TODO Auto-generated catch block
-						ie.printStackTrace();
-					}
+	/**
+	 * Queues data for the event loop to write to the channel.
+	 * 
+	 * @param data
+	 *            the data to write
+	 */
+	private void queue(final Outbound data) {
+		this.outbound.add(data);
+		this.eventLoop.requestWrite(this);
+	}
+
+	/**
+	 * Sets the event loop that will drive this peer's channel.
+	 * 
+	 * @param eventLoop
+	 *            the event loop
+	 */
+	void setEventLoop(final PeerEngine.EventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
+
+	/**
+	 * Sets the channel of a peer that connected to the client and whose
+	 * handshake has already been received and validated.
+	 * 
+	 * @param channel
+	 *            the accepted, non-blocking channel
+	 */
+	void setIncomingChannel(final SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Opens a non-blocking connection to the peer and registers it with the
+	 * selector. The handshake is queued right away and written once the
+	 * connection completes. Incoming peers are already connected and have
+	 * sent their handshake, so they are answered with the client's handshake
+	 * and bitfield. Called from the event loop.
+	 * 
+	 * @param selector
+	 *            the event loop's selector
+	 * @throws IOException
+	 *             if the connection can't be started
+	 */
+	void register(final Selector selector) throws IOException {
+		if (this.channel != null) {
+			this.queue(new Outbound.BufferOutbound(ByteBuffer.wrap(this
+					.getHandshake())));
+			this.handshakeComplete = true;
+			this.sendBitfield();
+			this.key = this.channel.register(selector, SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE, this);
+			return;
+		}
+		this.connectDeadline = System.currentTimeMillis()
+				+ Peer.CONNECT_TIMEOUT;
+		this.channel = SocketChannel.open();
+		this.channel.configureBlocking(false);
+		this.queue(new Outbound.BufferOutbound(ByteBuffer.wrap(this
+				.getHandshake())));
+		if (this.channel.connect(new InetSocketAddress(this.ip, this.port))) {
+			this.connectDeadline = System.currentTimeMillis()
+					+ Peer.HANDSHAKE_TIMEOUT;
+			this.key = this.channel.register(selector, SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE, this);
+		} else {
+			this.key = this.channel.register(selector,
+					SelectionKey.OP_CONNECT, this);
+		}
+	}
+
+	/**
+	 * Completes a pending connection. Called from the event loop.
+	 * 
+	 * @throws IOException
+	 *             if the connection failed
+	 */
+	void finishConnect() throws IOException {
+		if (this.channel.finishConnect()) {
+			Peer.LOGGER.info("Connected to " + this);
+			this.connectDeadline = System.currentTimeMillis()
+					+ Peer.HANDSHAKE_TIMEOUT;
+			this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads whatever is available from the channel and handles every complete
+	 * frame. Called from the event loop.
+	 * 
+	 * @throws IOException
+	 *             if the channel was closed or the peer misbehaved
+	 */
+	void onReadable() throws IOException {
+		final int wanted = this.readBuffer.remaining();
+		int allowance = wanted;
+		if ((this.limiter != null) && (wanted > 0)) {
+			allowance = this.limiter.takeDownload(this.downloadBucket, wanted);
+			if (allowance == 0) {
+				this.throttleReads();
+				return;
+			}
+		}
+		final int limit = this.readBuffer.limit();
+		this.readBuffer.limit(this.readBuffer.position() + allowance);
+		final int read;
+		try {
+			read = this.channel.read(this.readBuffer);
+		} finally {
+			this.readBuffer.limit(limit);
+		}
+		if ((this.limiter != null) && (read < allowance)) {
+			this.limiter.giveDownload(this.downloadBucket,
+					allowance - Math.max(0, read));
+		}
+		if (read < 0) {
+			throw new EOFException("Connection closed by " + this);
+		}
+		this.readBuffer.flip();
+		try {
+			if (!this.handshakeComplete) {
+				if (this.readBuffer.remaining() < Peer.HANDSHAKE_LENGTH) {
+					return;
 				}
+				final byte[] peerHandshake = new byte[Peer.HANDSHAKE_LENGTH];
+				this.readBuffer.get(peerHandshake);
+
+				// Validate handshake
+				if (!this.validateHandshake(peerHandshake)) {
+					throw new IOException("Handshake is incorrect.");
+				}
+				this.handshakeComplete = true;
+				this.sendBitfield();
+				// The half-open slot is free for the next dial
+				this.client.handshakeCompleted(this);
 			}
 
-		} catch (final IOException ioe) {
-			// TODO Auto-generated catch block
-			ioe.printStackTrace();
+			while (this.readBuffer.remaining() >= 4) {
+				final int length = this.readBuffer.getInt(this.readBuffer
+						.position());
+				if ((length < 0) || (length > Peer.MAX_FRAME_LENGTH)) {
+					throw new IOException("Invalid message length " + length
+							+ " from " + this);
+				}
+				if (this.readBuffer.remaining() < (4 + length)) {
+					if (this.readBuffer.capacity() < (4 + length)) {
+						// Grow so that the whole frame fits
+						final ByteBuffer larger = ByteBuffer
+								.allocateDirect(4 + length);
+						larger.put(this.readBuffer);
+						larger.flip();
+						this.readBuffer = larger;
+					}
+					break;
+				}
+				if ((length > 0)
+						&& (this.readBuffer.get(this.readBuffer.position() + 4) == Message.ID_PIECE)) {
+					// Blocks skip message decoding and go straight to their
+					// piece
+					this.receiveBlock(length);
+					continue;
+				}
+				final Message msg = Message.read(this.readBuffer);
+				if (msg != null) {
+					this.handleMessage(msg);
+				}
+			}
+		} finally {
+			this.readBuffer.compact();
 		}
 	}
 
 	/**
-	 * Connects this peer to the client through the socket.
+	 * Handles a single message decoded from the channel.
 	 * 
+	 * @param msg
+	 *            the decoded message
 	 * @throws IOException
 	 */
-	void connect() throws IOException {
-		// Create socket
-		this.socket = null;
+	private void handleMessage(final Message msg) throws IOException {
+		Peer.LOGGER.info("Decoded " + msg);
 		try {
-			this.socket = new Socket(this.ip, this.port);
-		} catch (final UnknownHostException uhe) {
-			Peer.LOGGER.log(Level.WARNING,
-					"The IP address of the host could not be determined from "
-							+ this.ip + ".", uhe);
-		} catch (final IOException ioe) {
-			Peer.LOGGER.log(Level.WARNING, "An I/O error occurred.", ioe);
+			// Handle the message received
+			if (msg.getId() == Message.ID_CHOKE) {
+				// Pending requests are discarded by a choking peer
+				this.clearRequests();
+			} else if (msg.getId() == Message.ID_CANCEL) {
+				// Drop the upload if it hasn't started yet
+				this.cancelUpload((CancelMessage) msg);
+				return;
+			}
+			// Queue Message as a MessageTask with the local client
+			Peer.LOGGER.info("Queued message: " + msg);
+			this.tasks.put(new MessageTask(this, msg));
+		} catch (final InterruptedException ie) {
+			// The task queue is unbounded, so this won't happen
+			Thread.currentThread().interrupt();
 		}
+	}
 
-		// Check if connected once but not closed
-		if ((this.socket == null) && !this.socket.isClosed()) {
-			Peer.LOGGER.log(Level.WARNING,
-					"Socket connected once but not closed.");
+	/**
+	 * Handles a Piece message at the head of the read buffer without decoding
+	 * it into a message, so that the block is copied once, from the read
+	 * buffer into its piece.
+	 * 
+	 * @param length
+	 *            the length of the frame after its length prefix
+	 * @throws IOException
+	 *             if the frame is too short to be a Piece message
+	 */
+	private void receiveBlock(final int length) throws IOException {
+		if (length < 9) {
+			throw new IOException("Invalid piece message length " + length
+					+ " from " + this);
+		}
+		final int frameEnd = this.readBuffer.position() + 4 + length;
+		final int limit = this.readBuffer.limit();
+		// Skip the length prefix and message id
+		this.readBuffer.position(this.readBuffer.position() + 5);
+		final int pieceIndex = this.readBuffer.getInt();
+		final int blockOffset = this.readBuffer.getInt();
+		this.readBuffer.limit(frameEnd);
+		try {
+			this.buildPiece(pieceIndex, blockOffset, this.readBuffer);
+		} catch (final InterruptedException ie) {
+			// The task queue is unbounded, so this won't happen
+			Thread.currentThread().interrupt();
+		} finally {
+			this.readBuffer.limit(limit);
+			this.readBuffer.position(frameEnd);
 		}
+	}
 
-		// Open IO streams
-		this.in = new DataInputStream(this.socket.getInputStream());
-		this.out = new DataOutputStream(this.socket.getOutputStream());
+	/**
+	 * Writes as much queued data as the channel accepts, dropping write
+	 * interest once the queue is drained. Called from the event loop.
+	 * 
+	 * @throws IOException
+	 *             if the write fails
+	 */
+	void onWritable() throws IOException {
+		// Unlimited writes go straight to the socket to keep block uploads
+		// zero-copy
+		GatheringByteChannel target = this.channel;
+		BandwidthLimiter.LimitedChannel limited = null;
+		if ((this.limiter != null)
+				&& this.limiter.isUploadLimited(this.uploadBucket)) {
+			final int allowance = this.limiter.takeUpload(this.uploadBucket,
+					Peer.WRITE_QUANTUM);
+			if (allowance == 0) {
+				this.throttleWrites();
+				return;
+			}
+			limited = new BandwidthLimiter.LimitedChannel(this.channel,
+					allowance);
+			target = limited;
+		}
+		try {
+			Outbound data;
+			while ((data = this.outbound.peek()) != null) {
+				if (data instanceof Outbound.BufferOutbound) {
+					if (!this.writeMessages(target)) {
+						return;
+					}
+					continue;
+				}
+				if (!data.writeTo(target)) {
+					// Socket buffer or allowance is used up, wait for the next
+					// write readiness
+					return;
+				}
+				this.outbound.poll();
+				if ((data instanceof Outbound.BlockOutbound)
+						&& !((Outbound.BlockOutbound) data).isDropped()) {
+					this.uploadMeter.add(((Outbound.BlockOutbound) data)
+							.getBlockLength());
+				}
+			}
+			this.key.interestOps(this.key.interestOps()
+					& ~SelectionKey.OP_WRITE);
+		} finally {
+			if (limited != null) {
+				this.limiter.giveUpload(this.uploadBucket,
+						limited.getAllowance());
+			}
+		}
 	}
 
 	/**
-	 * Disconnects this peer.
+	 * Writes the encoded messages at the head of the queue together, so that
+	 * a burst of small messages like a round of Have or Request messages
+	 * costs one system call instead of one per message. Called from the
+	 * event loop.
+	 * 
+	 * @param target
+	 *            the channel to write to
+	 * @return {@code true} if every message in the batch was written
+	 * @throws IOException
+	 *             if the write fails
 	 */
-	void disconnect() {
-		// Disconnect the socket, close data streams, catch all exceptions
+	private boolean writeMessages(final GatheringByteChannel target)
+			throws IOException {
+		// Only the event loop removes from the queue, so the batch stays at
+		// its head
+		int count = 0;
+		for (final Outbound data : this.outbound) {
+			if (!(data instanceof Outbound.BufferOutbound)
+					|| (count == Peer.MAX_GATHER)) {
+				break;
+			}
+			this.gather[count++] = ((Outbound.BufferOutbound) data)
+					.getBuffer();
+		}
 		try {
-			this.keepRunning = false;
+			target.write(this.gather, 0, count);
+			for (int i = 0; i < count; i++) {
+				if (this.gather[i].hasRemaining()) {
+					// Socket buffer or allowance is used up
+					return false;
+				}
+				this.outbound.poll();
+			}
+			return true;
+		} finally {
+			Arrays.fill(this.gather, 0, count, null);
+		}
+	}
+
+	/**
+	 * Stops reading until the event loop resumes this peer, because the
+	 * download buckets are empty. Called from the event loop.
+	 */
+	private void throttleReads() {
+		this.readThrottled = true;
+		this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+		this.eventLoop.throttle(this);
+	}
+
+	/**
+	 * Stops writing until the event loop resumes this peer, because the
+	 * upload buckets are empty. Called from the event loop.
+	 */
+	private void throttleWrites() {
+		this.writeThrottled = true;
+		this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+		this.eventLoop.throttle(this);
+	}
+
+	/**
+	 * Restores the read and write interest that was dropped while the
+	 * buckets were empty. Called from the event loop.
+	 */
+	void resumeThrottled() {
+		if ((this.key == null) || !this.key.isValid()) {
+			return;
+		}
+		int ops = this.key.interestOps();
+		if (this.readThrottled) {
+			this.readThrottled = false;
+			ops |= SelectionKey.OP_READ;
+		}
+		if (this.writeThrottled) {
+			this.writeThrottled = false;
+			ops |= SelectionKey.OP_WRITE;
+		}
+		this.key.interestOps(ops);
+	}
 
-			this.socket.close();
+	/**
+	 * Adds write interest for the channel once it is connected. Called from
+	 * the event loop.
+	 */
+	void enableWrites() {
+		if ((this.key != null) && this.key.isValid()
+				&& this.channel.isConnected() && !this.writeThrottled) {
+			this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
 
-			this.in.close();
+	/**
+	 * Disconnects this peer and lets the client know, once.
+	 */
+	void disconnect() {
+		synchronized (this) {
+			if (this.disconnected) {
+				return;
+			}
+			this.disconnected = true;
+		}
+		if (this.tasks != null) {
+			this.tasks.add(new MessageTask(this, Message.DISCONNECT));
+		}
 
-			this.out.flush();
-			this.out.close();
+		// Close the channel, which also cancels its selection key
+		this.releasePieces();
+		try {
+			if (this.channel != null) {
+				this.channel.close();
+			}
+			this.outbound.clear();
 
 			Peer.LOGGER.info("Disconnected peer: " + this);
 		} catch (final IOException ioe) {
@@ -473,17 +1003,15 @@ public class Peer extends Thread {
 	 * the previous message exceeds the limit set by KEEP_ALIVE_TIMEOUT.
 	 * 
 	 * @author Robert Moore
-	 * @throws Exception
+	 * @throws IOException
 	 */
-	protected void checkAndSendKeepAlive() throws Exception {
+	protected void checkAndSendKeepAlive() throws IOException {
+		if (!this.handshakeComplete) {
+			return;
+		}
 		final long now = System.currentTimeMillis();
 		if ((now - this.lastMessageTime) > Peer.KEEP_ALIVE_TIMEOUT) {
 			this.sendMessage(Message.KEEP_ALIVE);
-			// Validate that the timestamp was updated
-			if (now > this.lastMessageTime) {
-				throw new Exception(
-						"Didn't update lastMessageTime when sending a keep-alive!");
-			}
 		}
 	}
 
@@ -499,6 +1027,7 @@ public class Peer extends Thread {
 		result = (prime * result) + Arrays.hashCode(this.peerId);
 		result = (prime * result)
 				+ ((this.ip == null) ? 0 : this.ip.hashCode());
+		result = (prime * result) + this.port;
 		return result;
 	}
 
@@ -529,6 +1058,11 @@ public class Peer extends Thread {
 		} else if (!this.ip.equals(other.ip)) {
 			return false;
 		}
+		// Compact peers have no id, so several peers on one host differ
+		// only by port
+		if (this.port != other.port) {
+			return false;
+		}
 		return true;
 	}
 
@@ -578,7 +1112,7 @@ public class Peer extends Thread {
 	 */
 	private byte[] getHandshake() {
 		// Preallocate bytes for handshake
-		final byte[] handshake = new byte[68];
+		final byte[] handshake = new byte[Peer.HANDSHAKE_LENGTH];
 
 		// Header 19:BitTorrent protocol
 		// Begin with byte 19
@@ -615,12 +1149,43 @@ public class Peer extends Thread {
 			return false;
 		}
 
+		if (!Peer.validateHandshake(otherHandshake, this.infoHash)) {
+			return false;
+		}
+
+		// Check that peer ID is the same as from tracker, unless the tracker
+		// sent a compact peer list without peer ids
+		final byte[] otherPeerId = new byte[20];
+		System.arraycopy(otherHandshake, 48, otherPeerId, 0, 20);
+		if ((this.peerId != null) && !Arrays.equals(otherPeerId, this.peerId)) {
+			return false;
+		}
+
+		Peer.LOGGER.info("Handshake validated for " + this);
+
+		return true;
+	}
+
+	/**
+	 * Validates the protocol and info hash of a handshake.
+	 * 
+	 * @param otherHandshake
+	 *            the handshake received from a peer
+	 * @param infoHash
+	 *            the info hash of the torrent
+	 * @return {@code true} if the handshake is for this torrent
+	 */
+	static boolean validateHandshake(final byte[] otherHandshake,
+			final byte[] infoHash) {
 		// Verify the length
-		if (otherHandshake.length != 68) {
+		if (otherHandshake.length != Peer.HANDSHAKE_LENGTH) {
 			return false;
 		}
 
 		// Check protocol
+		if (otherHandshake[0] != Peer.BYTES_PROTOCOL.length) {
+			return false;
+		}
 		final byte[] otherProtocol = new byte[19];
 		System.arraycopy(otherHandshake, 1, otherProtocol, 0,
 				Peer.BYTES_PROTOCOL.length);
@@ -633,20 +1198,7 @@ public class Peer extends Thread {
 		// Check info hash against info hash from .torrent file
 		final byte[] otherInfoHash = new byte[20];
 		System.arraycopy(otherHandshake, 28, otherInfoHash, 0, 20);
-		if (!Arrays.equals(otherInfoHash, this.infoHash)) {
-			return false;
-		}
-
-		// Check that peer ID is the same as from tracker
-		final byte[] otherPeerId = new byte[20];
-		System.arraycopy(otherHandshake, 48, otherPeerId, 0, 20);
-		if (!Arrays.equals(otherPeerId, this.peerId)) {
-			return false;
-		}
-
-		Peer.LOGGER.info("Handshake validated for " + this);
-
-		return true;
+		return Arrays.equals(otherInfoHash, infoHash);
 	}
 
 	/**
@@ -670,103 +1222,351 @@ public class Peer extends Thread {
 	}
 
 	/**
-	 * This method is called from the client to specify which piece the Peer
-	 * object should begin building.
+	 * Sets the bandwidth limiter that reads and writes to this peer go
+	 * through.
 	 * 
-	 * @param pieceIndex
-	 *            the index of the piece to build
-	 * @param pieceLength
-	 *            the length of the entire piece
+	 * @param limiter
+	 *            the client's limiter, or {@code null} for no limits
+	 */
+	void setLimiter(final BandwidthLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Sets the maximum number of block requests kept outstanding with this
+	 * peer.
+	 * 
+	 * @param requestWindow
+	 *            the number of outstanding requests, at least 1
+	 */
+	synchronized void setRequestWindow(final int requestWindow) {
+		this.requestWindow = Math.max(1, requestWindow);
+	}
+
+	/**
+	 * This method is called from the client to add a piece for the Peer object
+	 * to build. Blocks of the piece are requested as the request window allows.
+	 * 
+	 * @param piece
+	 *            the piece to build
 	 * @throws IOException
 	 */
-	public void requestPiece(final int pieceIndex, final int pieceLength)
+	synchronized void requestPiece(final Piece piece) throws IOException {
+		this.pieces.add(piece);
+		piece.addHolder();
+		this.requestBlocks();
+	}
+
+	/**
+	 * Determines whether this peer should be given another piece, i.e. whether
+	 * it has fewer unrequested blocks left than it can keep outstanding.
+	 * 
+	 * @return {@code true} if another piece should be requested
+	 */
+	synchronized boolean needsPiece() {
+		if (this.localChoked) {
+			return false;
+		}
+		int unrequested = 0;
+		for (final Piece piece : this.pieces) {
+			unrequested += piece.getUnrequestedBlocks();
+		}
+		return unrequested < this.requestWindow;
+	}
+
+	/**
+	 * Sends block requests for the pieces of this peer until the request window
+	 * is full or every block has been requested.
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void requestBlocks() throws IOException {
+		while (!this.localChoked
+				&& (this.outstanding.size() < this.requestWindow)) {
+			RequestMessage requestMsg = null;
+			for (final Piece piece : this.pieces) {
+				requestMsg = piece.nextRequest();
+				if (requestMsg != null) {
+					break;
+				}
+			}
+			if (requestMsg == null) {
+				return;
+			}
+			this.outstanding.add(requestMsg);
+			this.sendMessage(requestMsg);
+		}
+	}
+
+	/**
+	 * Requests blocks of a piece in endgame mode that were already requested
+	 * from other peers, as the request window allows.
+	 * 
+	 * @param piece
+	 *            the piece in endgame mode
+	 * @return {@code true} if the request window still has room
+	 * @throws IOException
+	 */
+	synchronized boolean requestDuplicates(final Piece piece)
 			throws IOException {
-		this.pieceIndex = pieceIndex;
-		this.pieceLength = pieceLength;
-		this.piece = new byte[pieceLength];
-		this.lastBlockLength = this.pieceLength % Peer.BLOCK_LENGTH;
-
-		this.blockOffset = 0;
-
-		RequestMessage requestMsg;
-		if (this.lastBlockLength == this.pieceLength) {
-			// Request the last piece
-			requestMsg = new RequestMessage(this.pieceIndex, this.blockOffset,
-					this.lastBlockLength);
-		} else {
-			requestMsg = new RequestMessage(this.pieceIndex, this.blockOffset,
-					Peer.BLOCK_LENGTH);
+		if (this.localChoked) {
+			return false;
 		}
-		this.sendMessage(requestMsg);
+		for (final RequestMessage requestMsg : piece.getMissingRequests()) {
+			if (this.outstanding.size() >= this.requestWindow) {
+				return false;
+			}
+			if (this.findRequest(requestMsg.getPieceIndex(),
+					requestMsg.getBlockOffset(), requestMsg.getBlockLength()) != null) {
+				continue;
+			}
+			if (!this.pieces.contains(piece)) {
+				this.pieces.add(piece);
+				piece.addHolder();
+			}
+			this.outstanding.add(requestMsg);
+			this.sendMessage(requestMsg);
+		}
+		return this.outstanding.size() < this.requestWindow;
 	}
 
 	/**
-	 * Builds a file piece from blocks.
+	 * Cancels an outstanding request for a block that already arrived from
+	 * another peer.
 	 * 
-	 * @param msg
-	 *            the Piece Message containing file contents
+	 * @param pieceIndex
+	 *            the piece index
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 * @param blockLength
+	 *            the length of the block
+	 * @return {@code true} if the block was requested from this peer
+	 * @throws IOException
+	 */
+	synchronized boolean cancelRequest(final int pieceIndex,
+			final int blockOffset, final int blockLength) throws IOException {
+		final RequestMessage requestMsg = this.findRequest(pieceIndex,
+				blockOffset, blockLength);
+		if (requestMsg == null) {
+			return false;
+		}
+		this.outstanding.remove(requestMsg);
+		this.sendMessage(new CancelMessage(pieceIndex, blockOffset,
+				blockLength));
+		return true;
+	}
+
+	/**
+	 * Stops building a piece that was completed by another peer, cancelling
+	 * any requests still outstanding for it.
+	 * 
+	 * @param piece
+	 *            the completed piece
+	 * @return {@code true} if this peer was building the piece
+	 * @throws IOException
+	 */
+	synchronized boolean releasePiece(final Piece piece) throws IOException {
+		if (!this.pieces.remove(piece)) {
+			return false;
+		}
+		piece.removeHolder();
+		final Iterator<RequestMessage> it = this.outstanding.iterator();
+		while (it.hasNext()) {
+			final RequestMessage requestMsg = it.next();
+			if (requestMsg.getPieceIndex() == piece.getIndex()) {
+				it.remove();
+				this.sendMessage(new CancelMessage(requestMsg.getPieceIndex(),
+						requestMsg.getBlockOffset(), requestMsg
+								.getBlockLength()));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds an outstanding request for a block.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 * @param blockLength
+	 *            the length of the block
+	 * @return the request, or {@code null} if the block isn't outstanding
+	 */
+	private RequestMessage findRequest(final int pieceIndex,
+			final int blockOffset, final int blockLength) {
+		for (final RequestMessage requestMsg : this.outstanding) {
+			if ((requestMsg.getPieceIndex() == pieceIndex)
+					&& (requestMsg.getBlockOffset() == blockOffset)
+					&& (requestMsg.getBlockLength() == blockLength)) {
+				return requestMsg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Drops a queued upload that the remote peer no longer wants. An upload
+	 * that has started being written is finished, since the frame can't be
+	 * cut short.
+	 * 
+	 * @param cancelMsg
+	 *            the cancel message from the remote peer
+	 */
+	private void cancelUpload(final CancelMessage cancelMsg) {
+		for (final Outbound data : this.outbound) {
+			if (!(data instanceof Outbound.BlockOutbound)) {
+				continue;
+			}
+			final Outbound.BlockOutbound block = (Outbound.BlockOutbound) data;
+			if ((block.getPieceIndex() == cancelMsg.getPieceIndex())
+					&& (block.getBlockOffset() == cancelMsg.getBlockOffset())
+					&& (block.getBlockLength() == cancelMsg.getBlockLength())) {
+				block.cancel();
+				Peer.LOGGER.info("Cancelled upload to " + this + ": "
+						+ cancelMsg);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forgets all outstanding requests, which the remote peer discards when it
+	 * chokes us, so that the blocks can be requested again.
+	 */
+	private synchronized void clearRequests() {
+		for (final RequestMessage requestMsg : this.outstanding) {
+			final Piece piece = this.getPiece(requestMsg.getPieceIndex());
+			if (piece != null) {
+				piece.cancelRequest(requestMsg.getBlockOffset());
+			}
+		}
+		this.outstanding.clear();
+	}
+
+	/**
+	 * Gives up all pieces of this peer so that other peers can finish them.
+	 */
+	private synchronized void releasePieces() {
+		this.clearRequests();
+		for (final Piece piece : this.pieces) {
+			piece.removeHolder();
+		}
+		this.pieces.clear();
+	}
+
+	/**
+	 * Finds the piece with the given index among this peer's pieces.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @return the piece, or {@code null} if this peer isn't building it
+	 */
+	private Piece getPiece(final int pieceIndex) {
+		for (final Piece piece : this.pieces) {
+			if (piece.getIndex() == pieceIndex) {
+				return piece;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the outstanding request that the block answers.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 * @param blockLength
+	 *            the length of the block
+	 * @return {@code true} if the block was requested
+	 */
+	private boolean removeRequest(final int pieceIndex, final int blockOffset,
+			final int blockLength) {
+		final RequestMessage requestMsg = this.findRequest(pieceIndex,
+				blockOffset, blockLength);
+		return (requestMsg != null) && this.outstanding.remove(requestMsg);
+	}
+
+	/**
+	 * Builds file pieces from blocks, which may arrive in any order. A complete
+	 * piece is queued for the client and the request window is refilled.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 * @param block
+	 *            the block data, still in the read buffer
 	 * @throws InterruptedException
 	 * @throws IOException
 	 */
-	private void buildPiece(final Message msg) throws InterruptedException,
-			IOException {
-		// Make sure this is a Piece Message
-		if (msg.getId() == Message.ID_PIECE) {
-			final PieceMessage pieceMsg = (PieceMessage) msg;
-
-			// Add to client downloaded
-			this.client.addDownloaded(pieceMsg.getBlock().length);
-
-			// Confirm that a Piece Message was received for the piece currently
-			// being built by this Peer. The block offset should indicate that
-			// the expected block is being worked on, as well.
-			if (pieceMsg.getPieceIndex() != this.pieceIndex) {
-				Peer.LOGGER
-						.warning("Incorrect piece received from " + pieceMsg);
-			} else if (pieceMsg.getBlockOffset() != this.blockOffset) {
-				Peer.LOGGER.warning("Incorrect block offset received from "
-						+ pieceMsg);
+	private synchronized void buildPiece(final int pieceIndex,
+			final int blockOffset, final ByteBuffer block)
+			throws InterruptedException, IOException {
+		this.storeBlock(pieceIndex, blockOffset, block);
+		this.requestBlocks();
+	}
+
+	/**
+	 * Stores a received block in the piece that it belongs to.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 * @param block
+	 *            the block data, still in the read buffer
+	 * @throws InterruptedException
+	 */
+	private void storeBlock(final int pieceIndex, final int blockOffset,
+			final ByteBuffer block) throws InterruptedException {
+		final int blockLength = block.remaining();
+		final String description = "block [pieceIndex=" + pieceIndex
+				+ ", blockOffset=" + blockOffset + ", blockLength="
+				+ blockLength + "]";
+		Peer.LOGGER.info("Received " + description + " from " + this);
+
+		// Add to client downloaded
+		this.client.addDownloaded(blockLength);
+		this.downloadMeter.add(blockLength);
+
+		// Confirm that the block was requested from this peer for a piece
+		// that it is building
+		final Piece piece = this.getPiece(pieceIndex);
+		final boolean requested = this.removeRequest(pieceIndex, blockOffset,
+				blockLength);
+		if (piece == null) {
+			// Possibly a late block of a piece that another peer completed
+			Peer.LOGGER.info("Dropped " + description
+					+ " of a piece not requested from " + this);
+		} else if (!requested && !piece.isEndgame()) {
+			Peer.LOGGER.warning("Unrequested " + description
+					+ " received from " + this);
+		} else if (!piece.receive(blockOffset, block)) {
+			if (piece.isEndgame()) {
+				// Another peer was faster
+				Peer.LOGGER.info("Dropped duplicate " + description + " from "
+						+ this);
 			} else {
-				// The Peer received a good Piece Message
-				if (pieceMsg.getBlock().length == this.lastBlockLength) {
-					// Write the last block of piece
-					System.arraycopy(pieceMsg.getBlock(), 0, this.piece,
-							this.blockOffset, this.lastBlockLength);
-					// Queue the full piece
-					final PieceMessage returnMsg = new PieceMessage(
-							this.pieceIndex, 0, this.piece);
-					this.tasks.put(new MessageTask(this, returnMsg));
-				} else if (((pieceMsg.getBlockOffset() + BLOCK_LENGTH + this.lastBlockLength) == this.pieceLength) && this.lastBlockLength == 0) {
-					// Write the last block of piece
-					System.arraycopy(pieceMsg.getBlock(), 0, this.piece,
-							this.blockOffset, BLOCK_LENGTH);
-					// Queue the full piece
-					final PieceMessage returnMsg = new PieceMessage(
-							this.pieceIndex, 0, this.piece);
-					this.tasks.put(new MessageTask(this, returnMsg));
-				} else if ((pieceMsg.getBlockOffset() + BLOCK_LENGTH + this.lastBlockLength) == this.pieceLength) {
-					// Write the second to last block of piece
-					System.arraycopy(pieceMsg.getBlock(), 0, this.piece,
-							this.blockOffset, Peer.BLOCK_LENGTH);
-					RequestMessage requestMsg;
-
-					// Request another piece
-					this.blockOffset = this.blockOffset + Peer.BLOCK_LENGTH;
-					requestMsg = new RequestMessage(this.pieceIndex,
-							this.blockOffset, this.lastBlockLength);
-					this.sendMessage(requestMsg);
-				} else {
-					// Temporarily store the block
-					System.arraycopy(pieceMsg.getBlock(), 0, this.piece,
-							this.blockOffset, Peer.BLOCK_LENGTH);
-					RequestMessage requestMsg;
-
-					// Request another piece
-					this.blockOffset = this.blockOffset + Peer.BLOCK_LENGTH;
-					requestMsg = new RequestMessage(this.pieceIndex,
-							this.blockOffset, Peer.BLOCK_LENGTH);
-					this.sendMessage(requestMsg);
-				}
+				Peer.LOGGER.warning("Invalid " + description
+						+ " received from " + this);
+			}
+		} else {
+			if (piece.isEndgame()) {
+				// Let the client cancel the duplicate requests
+				this.tasks.put(new MessageTask(this, new ReceivedMessage(
+						pieceIndex, blockOffset, blockLength)));
+			}
+			if (piece.isComplete()) {
+				this.pieces.remove(piece);
+				piece.removeHolder();
+				// Queue the full piece
+				final PieceMessage returnMsg = new PieceMessage(
+						piece.getIndex(), 0, piece.getData());
+				this.tasks.put(new MessageTask(this, returnMsg));
 			}
 		}
 	}
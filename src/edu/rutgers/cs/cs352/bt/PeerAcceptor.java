@@ -0,0 +1,328 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listens on the port announced to the tracker and accepts connections from
+ * remote peers. The handshake of each incoming connection is read and checked
+ * against the torrent's info hash before the connection is handed to the
+ * client, which drives it with the same {@link PeerEngine} as outgoing peers.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class PeerAcceptor extends Thread {
+
+	/**
+	 * Logger for the acceptor.
+	 */
+	private final static Logger LOGGER = Logger.getLogger(PeerAcceptor.class
+			.getName());
+
+	/**
+	 * The first port to try listening on.
+	 */
+	static final int FIRST_PORT = 6881;
+
+	/**
+	 * The last port to try listening on.
+	 */
+	static final int LAST_PORT = 6889;
+
+	/**
+	 * The maximum number of accepted connections that may still be waiting to
+	 * complete their handshake.
+	 */
+	private static final int MAX_HALF_OPEN = 16;
+
+	/**
+	 * The time in milliseconds that an accepted connection has to send its
+	 * handshake.
+	 */
+	private static final long HANDSHAKE_TIMEOUT = 10000;
+
+	/**
+	 * The client that accepted peers are handed to.
+	 */
+	private final RUBTClient client;
+
+	/**
+	 * The info hash that incoming handshakes must match.
+	 */
+	private final byte[] infoHash;
+
+	/**
+	 * The local client's peer ID.
+	 */
+	private final byte[] clientId;
+
+	/**
+	 * The listening channel.
+	 */
+	private final ServerSocketChannel serverChannel;
+
+	/**
+	 * The selector for the listening channel and half-open connections.
+	 */
+	private final Selector selector;
+
+	/**
+	 * The selection key of the listening channel.
+	 */
+	private final SelectionKey acceptKey;
+
+	/**
+	 * The number of accepted connections still waiting for a handshake.
+	 */
+	private int halfOpen = 0;
+
+	/**
+	 * Flag to keep the acceptor running. Once false, the acceptor *should*
+	 * exit.
+	 */
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * An accepted connection whose handshake hasn't been fully received yet.
+	 */
+	private static class PendingHandshake {
+		private final ByteBuffer handshake = ByteBuffer
+				.allocate(Peer.HANDSHAKE_LENGTH);
+		private final long deadline = System.currentTimeMillis()
+				+ PeerAcceptor.HANDSHAKE_TIMEOUT;
+	}
+
+	/**
+	 * Creates a new acceptor listening on the first free port between
+	 * {@link #FIRST_PORT} and {@link #LAST_PORT}.
+	 * 
+	 * @param client
+	 *            the client to hand accepted peers to
+	 * @param infoHash
+	 *            the torrent's info hash
+	 * @param clientId
+	 *            the local client's peer ID
+	 * @throws IOException
+	 *             if none of the ports could be bound
+	 */
+	PeerAcceptor(final RUBTClient client, final byte[] infoHash,
+			final byte[] clientId) throws IOException {
+		super("PeerAcceptor");
+		this.setDaemon(true);
+		this.client = client;
+		this.infoHash = infoHash;
+		this.clientId = clientId;
+
+		this.serverChannel = ServerSocketChannel.open();
+		IOException bindException = null;
+		for (int port = PeerAcceptor.FIRST_PORT; port <= PeerAcceptor.LAST_PORT; port++) {
+			try {
+				this.serverChannel.socket().bind(new InetSocketAddress(port));
+				bindException = null;
+				break;
+			} catch (final IOException ioe) {
+				PeerAcceptor.LOGGER.warning("Unable to listen on port " + port);
+				bindException = ioe;
+			}
+		}
+		if (bindException != null) {
+			this.serverChannel.close();
+			throw bindException;
+		}
+		this.serverChannel.configureBlocking(false);
+
+		this.selector = Selector.open();
+		this.acceptKey = this.serverChannel.register(this.selector,
+				SelectionKey.OP_ACCEPT);
+
+		PeerAcceptor.LOGGER.info("Listening for peers on port "
+				+ this.getPort());
+	}
+
+	/**
+	 * @return the port that the acceptor is listening on
+	 */
+	int getPort() {
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stops accepting peers and closes the listening channel.
+	 */
+	void shutdown() {
+		this.keepRunning = false;
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (this.keepRunning) {
+			try {
+				this.selector.select(1000);
+			} catch (final IOException ioe) {
+				PeerAcceptor.LOGGER.log(Level.SEVERE,
+						"I/O exception encountered when selecting", ioe);
+				break;
+			}
+
+			final Iterator<SelectionKey> keys = this.selector.selectedKeys()
+					.iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					this.accept();
+				} else if (key.isReadable()) {
+					this.readHandshake(key);
+				}
+			}
+
+			this.expireHandshakes();
+		}
+
+		for (final SelectionKey key : this.selector.keys()) {
+			if (key.isValid()) {
+				this.close(key);
+			}
+		}
+		try {
+			this.selector.close();
+		} catch (final IOException ioe) {
+			// Nothing left to do with it anyway
+		}
+	}
+
+	/**
+	 * Accepts pending connections until the half-open limit is reached.
+	 */
+	private void accept() {
+		while (this.halfOpen < PeerAcceptor.MAX_HALF_OPEN) {
+			SocketChannel channel;
+			try {
+				channel = this.serverChannel.accept();
+				if (channel == null) {
+					break;
+				}
+				channel.configureBlocking(false);
+				channel.register(this.selector, SelectionKey.OP_READ,
+						new PendingHandshake());
+				this.halfOpen++;
+				PeerAcceptor.LOGGER.info("Accepted connection from "
+						+ channel.socket().getRemoteSocketAddress());
+			} catch (final IOException ioe) {
+				PeerAcceptor.LOGGER.log(Level.WARNING,
+						"I/O exception encountered when accepting a peer", ioe);
+				break;
+			}
+		}
+		this.updateAcceptInterest();
+	}
+
+	/**
+	 * Reads the handshake of a half-open connection and hands the connection
+	 * to the client once it has been validated.
+	 * 
+	 * @param key
+	 *            the key of the half-open connection
+	 */
+	private void readHandshake(final SelectionKey key) {
+		final SocketChannel channel = (SocketChannel) key.channel();
+		final PendingHandshake pending = (PendingHandshake) key.attachment();
+		try {
+			if (channel.read(pending.handshake) < 0) {
+				throw new EOFException("Connection closed during handshake");
+			}
+			if (pending.handshake.hasRemaining()) {
+				return;
+			}
+
+			final byte[] handshake = pending.handshake.array();
+			if (!Peer.validateHandshake(handshake, this.infoHash)) {
+				throw new IOException("Handshake is incorrect.");
+			}
+
+			// Hand the connection over to the peer engine
+			key.cancel();
+			key.attach(null);
+			this.halfOpen--;
+			this.updateAcceptInterest();
+
+			final byte[] peerId = new byte[20];
+			System.arraycopy(handshake, 48, peerId, 0, peerId.length);
+			final InetSocketAddress address = (InetSocketAddress) channel
+					.socket().getRemoteSocketAddress();
+			final Peer peer = new Peer(peerId, address.getAddress()
+					.getHostAddress(), Integer.valueOf(address.getPort()),
+					this.infoHash, this.clientId);
+			peer.setIncomingChannel(channel);
+			this.client.addIncomingPeer(peer);
+		} catch (final IOException ioe) {
+			PeerAcceptor.LOGGER.log(Level.WARNING,
+					"Dropping incoming connection", ioe);
+			this.close(key);
+		}
+	}
+
+	/**
+	 * Closes half-open connections whose handshake didn't arrive in time.
+	 */
+	private void expireHandshakes() {
+		final long now = System.currentTimeMillis();
+		for (final SelectionKey key : this.selector.keys()) {
+			final Object attachment = key.attachment();
+			if (key.isValid() && (attachment instanceof PendingHandshake)
+					&& (now > ((PendingHandshake) attachment).deadline)) {
+				PeerAcceptor.LOGGER.warning("Handshake timed out for "
+						+ ((SocketChannel) key.channel()).socket()
+								.getRemoteSocketAddress());
+				this.close(key);
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel of the key, freeing its half-open slot if it had one.
+	 * 
+	 * @param key
+	 *            the key to close
+	 */
+	private void close(final SelectionKey key) {
+		if (key.attachment() instanceof PendingHandshake) {
+			this.halfOpen--;
+		}
+		key.attach(null);
+		try {
+			key.channel().close();
+		} catch (final IOException ioe) {
+			// Nothing left to do with it anyway
+		}
+		if (this.keepRunning) {
+			this.updateAcceptInterest();
+		}
+	}
+
+	/**
+	 * Stops accepting while the half-open limit is reached and resumes once
+	 * slots are free again.
+	 */
+	private void updateAcceptInterest() {
+		if (this.acceptKey.isValid()) {
+			this.acceptKey
+					.interestOps(this.halfOpen < PeerAcceptor.MAX_HALF_OPEN ? SelectionKey.OP_ACCEPT
+							: 0);
+		}
+	}
+}
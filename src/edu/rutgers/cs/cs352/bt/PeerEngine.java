@@ -0,0 +1,369 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The peer engine drives every peer connection from a small, fixed pool of
+ * event loop threads. Each event loop owns a {@link Selector} and multiplexes
+ * the non-blocking socket channels of the peers assigned to it, so the number
+ * of threads no longer grows with the number of connected peers.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class PeerEngine {
+
+	/**
+	 * Logger for the peer engine.
+	 */
+	private final static Logger LOGGER = Logger.getLogger(PeerEngine.class
+			.getName());
+
+	/**
+	 * The default number of event loop threads.
+	 */
+	static final int DEFAULT_EVENT_LOOPS = Math.min(4, Runtime.getRuntime()
+			.availableProcessors());
+
+	/**
+	 * How often, in milliseconds, each event loop checks its peers for pending
+	 * keep-alives.
+	 */
+	private static final long KEEP_ALIVE_CHECK_INTERVAL = 10000;
+
+	/**
+	 * How long, in milliseconds, a peer waits for the bandwidth limiter's
+	 * buckets to refill after they ran dry.
+	 */
+	private static final long THROTTLE_DELAY = 50;
+
+	/**
+	 * How often, in milliseconds, each event loop checks for connections and
+	 * handshakes that took too long, while it has any.
+	 */
+	private static final long CONNECT_CHECK_INTERVAL = 1000;
+
+	/**
+	 * The event loops that peers are spread across.
+	 */
+	private final EventLoop[] loops;
+
+	/**
+	 * The index of the event loop that the next peer will be assigned to.
+	 */
+	private int nextLoop = 0;
+
+	/**
+	 * Creates a new peer engine with the given number of event loops.
+	 * 
+	 * @param loopCount
+	 *            the number of event loop threads
+	 * @throws IOException
+	 *             if a selector could not be opened
+	 */
+	PeerEngine(final int loopCount) throws IOException {
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i] = new EventLoop(i);
+		}
+	}
+
+	/**
+	 * Starts all event loop threads.
+	 */
+	void start() {
+		for (final EventLoop loop : this.loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * Assigns the peer to one of the event loops, which will open the
+	 * connection and drive it from then on.
+	 * 
+	 * @param peer
+	 *            the peer to connect to
+	 */
+	synchronized void connect(final Peer peer) {
+		final EventLoop loop = this.loops[this.nextLoop];
+		this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+		peer.setEventLoop(loop);
+		loop.register(peer);
+	}
+
+	/**
+	 * Stops all event loop threads and closes their selectors.
+	 */
+	void shutdown() {
+		for (final EventLoop loop : this.loops) {
+			loop.shutdown();
+		}
+	}
+
+	/**
+	 * A single selector thread that handles connect, read and write readiness
+	 * for the peers registered with it.
+	 */
+	static class EventLoop extends Thread {
+
+		/**
+		 * The selector multiplexing this loop's peer channels.
+		 */
+		private final Selector selector;
+
+		/**
+		 * Peers waiting to have their channels opened and registered.
+		 */
+		private final ConcurrentLinkedQueue<Peer> pendingRegistrations = new ConcurrentLinkedQueue<Peer>();
+
+		/**
+		 * Peers that have queued outbound data since the last select.
+		 */
+		private final ConcurrentLinkedQueue<Peer> pendingWrites = new ConcurrentLinkedQueue<Peer>();
+
+		/**
+		 * The last time in milliseconds that peers were checked for
+		 * keep-alives.
+		 */
+		private long lastKeepAliveCheck = System.currentTimeMillis();
+
+		/**
+		 * Peers whose reads or writes are paused by the bandwidth limiter.
+		 */
+		private final List<Peer> throttled = new ArrayList<Peer>();
+
+		/**
+		 * The time in milliseconds that the throttled peers are resumed.
+		 */
+		private long throttleResume = 0;
+
+		/**
+		 * Peers that were dialed and haven't completed their handshake yet.
+		 */
+		private final List<Peer> connecting = new ArrayList<Peer>();
+
+		/**
+		 * Flag to keep the loop running. Once false, the loop *should* exit.
+		 */
+		private volatile boolean keepRunning = true;
+
+		EventLoop(final int index) throws IOException {
+			super("PeerEngine-" + index);
+			this.setDaemon(true);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Queues a peer to be connected and registered by this loop.
+		 * 
+		 * @param peer
+		 *            the peer to register
+		 */
+		void register(final Peer peer) {
+			this.pendingRegistrations.add(peer);
+			this.selector.wakeup();
+		}
+
+		/**
+		 * Tells this loop that the peer has outbound data to write.
+		 * 
+		 * @param peer
+		 *            the peer with queued data
+		 */
+		void requestWrite(final Peer peer) {
+			this.pendingWrites.add(peer);
+			if (Thread.currentThread() != this) {
+				this.selector.wakeup();
+			}
+		}
+
+		/**
+		 * Pauses the peer until the bandwidth limiter's buckets have had time
+		 * to refill. Called from this loop.
+		 * 
+		 * @param peer
+		 *            the peer whose read or write interest was dropped
+		 */
+		void throttle(final Peer peer) {
+			if (this.throttled.isEmpty()) {
+				this.throttleResume = System.currentTimeMillis()
+						+ PeerEngine.THROTTLE_DELAY;
+			}
+			if (!this.throttled.contains(peer)) {
+				this.throttled.add(peer);
+			}
+		}
+
+		/**
+		 * Stops this loop.
+		 */
+		void shutdown() {
+			this.keepRunning = false;
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (this.keepRunning) {
+				long timeout = PeerEngine.KEEP_ALIVE_CHECK_INTERVAL;
+				if (!this.connecting.isEmpty()) {
+					timeout = PeerEngine.CONNECT_CHECK_INTERVAL;
+				}
+				if (!this.throttled.isEmpty()) {
+					timeout = Math.max(1, Math.min(timeout, this.throttleResume
+							- System.currentTimeMillis()));
+				}
+				try {
+					this.selector.select(timeout);
+				} catch (final IOException ioe) {
+					PeerEngine.LOGGER.log(Level.SEVERE,
+							"I/O exception encountered when selecting", ioe);
+					break;
+				}
+
+				this.processRegistrations();
+				this.processThrottled();
+				this.processWrites();
+
+				final Iterator<SelectionKey> keys = this.selector
+						.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					final Peer peer = (Peer) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							peer.finishConnect();
+						}
+						if (key.isValid() && key.isReadable()) {
+							peer.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							peer.onWritable();
+						}
+					} catch (final CancelledKeyException cke) {
+						// Peer was disconnected from another thread
+					} catch (final IOException ioe) {
+						PeerEngine.LOGGER.log(Level.WARNING,
+								"I/O exception encountered with " + peer, ioe);
+						peer.disconnect();
+					} catch (final RuntimeException re) {
+						// Only the peer that caused it is dropped, the rest of
+						// this loop's peers keep going
+						PeerEngine.LOGGER.log(Level.SEVERE,
+								"Unexpected exception handling " + peer, re);
+						peer.disconnect();
+					}
+				}
+
+				this.checkConnectTimeouts();
+				this.checkKeepAlives();
+			}
+
+			for (final SelectionKey key : this.selector.keys()) {
+				((Peer) key.attachment()).disconnect();
+			}
+			try {
+				this.selector.close();
+			} catch (final IOException ioe) {
+				// Nothing left to do with it anyway
+			}
+		}
+
+		/**
+		 * Opens the channels of newly assigned peers.
+		 */
+		private void processRegistrations() {
+			Peer peer;
+			while ((peer = this.pendingRegistrations.poll()) != null) {
+				try {
+					peer.register(this.selector);
+					if (!peer.isHandshakeComplete()) {
+						this.connecting.add(peer);
+					}
+				} catch (final IOException ioe) {
+					PeerEngine.LOGGER.log(Level.WARNING,
+							"Unable to connect to " + peer, ioe);
+					peer.disconnect();
+				}
+			}
+		}
+
+		/**
+		 * Resumes the throttled peers once their delay is up.
+		 */
+		private void processThrottled() {
+			if (this.throttled.isEmpty()
+					|| (System.currentTimeMillis() < this.throttleResume)) {
+				return;
+			}
+			for (final Peer peer : this.throttled) {
+				try {
+					peer.resumeThrottled();
+				} catch (final CancelledKeyException cke) {
+					// Peer was disconnected from another thread
+				}
+			}
+			this.throttled.clear();
+		}
+
+		/**
+		 * Adds write interest for every peer with newly queued data.
+		 */
+		private void processWrites() {
+			Peer peer;
+			while ((peer = this.pendingWrites.poll()) != null) {
+				peer.enableWrites();
+			}
+		}
+
+		/**
+		 * Disconnects peers whose connection or handshake took too long, and
+		 * forgets those that completed their handshake.
+		 */
+		private void checkConnectTimeouts() {
+			final long now = System.currentTimeMillis();
+			for (final Iterator<Peer> it = this.connecting.iterator(); it
+					.hasNext();) {
+				final Peer peer = it.next();
+				if (peer.isHandshakeComplete() || peer.isDisconnected()) {
+					it.remove();
+				} else if (peer.isConnectTimedOut(now)) {
+					it.remove();
+					PeerEngine.LOGGER.info("Timed out connecting to " + peer);
+					peer.disconnect();
+				}
+			}
+		}
+
+		/**
+		 * Lets every peer on this loop decide whether it needs to send a
+		 * keep-alive, at most once per check interval.
+		 */
+		private void checkKeepAlives() {
+			final long now = System.currentTimeMillis();
+			if ((now - this.lastKeepAliveCheck) < PeerEngine.KEEP_ALIVE_CHECK_INTERVAL) {
+				return;
+			}
+			this.lastKeepAliveCheck = now;
+			for (final SelectionKey key : this.selector.keys()) {
+				final Peer peer = (Peer) key.attachment();
+				try {
+					peer.checkAndSendKeepAlive();
+				} catch (final IOException ioe) {
+					PeerEngine.LOGGER.log(Level.WARNING,
+							"Unable to send keep-alive to " + peer, ioe);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import edu.rutgers.cs.cs352.bt.Message.RequestMessage;
+
+/**
+ * A piece that is being downloaded. Keeps track of which blocks of the piece
+ * have been requested and which have been received, so that blocks can be
+ * requested several at a time and may arrive in any order. Blocks are hashed
+ * as soon as they extend the run of received blocks at the start of the
+ * piece, while they are still in cache; blocks that arrive early wait in the
+ * piece data until the gap before them is filled.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class Piece {
+
+	/**
+	 * The block size that will be requested, 16K.
+	 */
+	static final int BLOCK_LENGTH = 16384; // = 16Kb
+
+	/**
+	 * The zero-based index of the piece within the file.
+	 */
+	private final int index;
+
+	/**
+	 * The length of the piece.
+	 */
+	private final int length;
+
+	/**
+	 * The number of blocks in the piece.
+	 */
+	private final int blockCount;
+
+	/**
+	 * The piece data, filled in as blocks arrive.
+	 */
+	private final byte[] data;
+
+	/**
+	 * Blocks that have been requested from a peer, including those received.
+	 */
+	private final BitSet requested;
+
+	/**
+	 * Blocks that have been received.
+	 */
+	private final BitSet received;
+
+	/**
+	 * The SHA-1 digest of the blocks at the start of the piece that have been
+	 * hashed so far.
+	 */
+	private final MessageDigest sha;
+
+	/**
+	 * The number of blocks at the start of the piece that have been hashed.
+	 */
+	private int hashedBlocks = 0;
+
+	/**
+	 * The SHA-1 hash of the complete piece, once every block is hashed.
+	 */
+	private byte[] hash = null;
+
+	/**
+	 * The number of peers currently requesting blocks of this piece.
+	 */
+	private int holders = 0;
+
+	/**
+	 * Whether the blocks of this piece that are still missing may be
+	 * requested from several peers at once.
+	 */
+	private boolean endgame = false;
+
+	/**
+	 * Creates a new, empty piece.
+	 * 
+	 * @param index
+	 *            the index of the piece
+	 * @param length
+	 *            the length of the piece
+	 */
+	Piece(final int index, final int length) {
+		this.index = index;
+		this.length = length;
+		this.blockCount = (length + Piece.BLOCK_LENGTH - 1) / Piece.BLOCK_LENGTH;
+		this.data = new byte[length];
+		this.requested = new BitSet(this.blockCount);
+		this.received = new BitSet(this.blockCount);
+		try {
+			this.sha = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException nsae) {
+			// Won't happen!
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * @return the piece index
+	 */
+	int getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * @return the piece length
+	 */
+	int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * Returns the piece data. Only complete once {@link #isComplete()}.
+	 * 
+	 * @return the piece data
+	 */
+	byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * Gives the length of a block, which is shorter for the last block if the
+	 * piece length isn't a multiple of the block length.
+	 * 
+	 * @param block
+	 *            the zero-based block number
+	 * @return the block length
+	 */
+	private int getBlockLength(final int block) {
+		return Math.min(Piece.BLOCK_LENGTH, this.length
+				- (block * Piece.BLOCK_LENGTH));
+	}
+
+	/**
+	 * Marks the first block that hasn't been requested yet as requested.
+	 * 
+	 * @return the request for the block, or {@code null} if every block has
+	 *         already been requested
+	 */
+	synchronized RequestMessage nextRequest() {
+		final int block = this.requested.nextClearBit(0);
+		if (block >= this.blockCount) {
+			return null;
+		}
+		this.requested.set(block);
+		return new RequestMessage(this.index, block * Piece.BLOCK_LENGTH,
+				this.getBlockLength(block));
+	}
+
+	/**
+	 * Returns a block that was requested but not received to the pool of
+	 * blocks to request, e.g. after a choke or disconnect.
+	 * 
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 */
+	synchronized void cancelRequest(final int blockOffset) {
+		final int block = blockOffset / Piece.BLOCK_LENGTH;
+		if (!this.received.get(block)) {
+			this.requested.clear(block);
+		}
+	}
+
+	/**
+	 * Stores a received block in the piece, copying it straight from the
+	 * buffer it was read into.
+	 * 
+	 * @param blockOffset
+	 *            the offset of the block within the piece
+	 * @param block
+	 *            the block data, which is consumed only if it is stored
+	 * @return {@code true} if the block was new and valid, {@code false} if it
+	 *         was a duplicate or doesn't line up with a block of this piece
+	 */
+	synchronized boolean receive(final int blockOffset, final ByteBuffer block) {
+		if ((blockOffset % Piece.BLOCK_LENGTH) != 0) {
+			return false;
+		}
+		final int blockNum = blockOffset / Piece.BLOCK_LENGTH;
+		if ((blockNum >= this.blockCount)
+				|| (block.remaining() != this.getBlockLength(blockNum))
+				|| this.received.get(blockNum)) {
+			return false;
+		}
+		block.get(this.data, blockOffset, block.remaining());
+		this.received.set(blockNum);
+		this.requested.set(blockNum);
+		this.hashReceived();
+		return true;
+	}
+
+	/**
+	 * Feeds the digest every received block that directly follows the blocks
+	 * hashed so far.
+	 */
+	private void hashReceived() {
+		while ((this.hashedBlocks < this.blockCount)
+				&& this.received.get(this.hashedBlocks)) {
+			this.sha.update(this.data, this.hashedBlocks * Piece.BLOCK_LENGTH,
+					this.getBlockLength(this.hashedBlocks));
+			this.hashedBlocks++;
+		}
+		if ((this.hashedBlocks == this.blockCount) && (this.hash == null)) {
+			this.hash = this.sha.digest();
+		}
+	}
+
+	/**
+	 * Gives the SHA-1 hash of the piece data, which was computed as the
+	 * blocks arrived.
+	 * 
+	 * @return the hash, or {@code null} if the piece isn't complete
+	 */
+	synchronized byte[] getHash() {
+		return this.hash;
+	}
+
+	/**
+	 * @return {@code true} if every block has been received
+	 */
+	synchronized boolean isComplete() {
+		return this.received.cardinality() == this.blockCount;
+	}
+
+	/**
+	 * @return the number of blocks that haven't been requested yet
+	 */
+	synchronized int getUnrequestedBlocks() {
+		return this.blockCount - this.requested.cardinality();
+	}
+
+	/**
+	 * Gives a request for every block that has been requested but not yet
+	 * received, so that it can be requested from another peer in endgame mode.
+	 * 
+	 * @return the requests for the missing blocks
+	 */
+	synchronized List<RequestMessage> getMissingRequests() {
+		final List<RequestMessage> missing = new ArrayList<RequestMessage>();
+		for (int block = this.requested.nextSetBit(0); block >= 0; block = this.requested
+				.nextSetBit(block + 1)) {
+			if (!this.received.get(block)) {
+				missing.add(new RequestMessage(this.index, block
+						* Piece.BLOCK_LENGTH, this.getBlockLength(block)));
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Puts this piece in endgame mode, in which its missing blocks are
+	 * requested from every peer that has it.
+	 */
+	synchronized void setEndgame() {
+		this.endgame = true;
+	}
+
+	/**
+	 * @return {@code true} if this piece is in endgame mode
+	 */
+	synchronized boolean isEndgame() {
+		return this.endgame;
+	}
+
+	/**
+	 * Gives the blocks received so far, for the fast-resume file.
+	 * 
+	 * @return the received blocks as a little-endian bit array
+	 */
+	synchronized byte[] getReceivedBlocks() {
+		return this.received.toByteArray();
+	}
+
+	/**
+	 * Marks blocks as received whose data was restored from the fast-resume
+	 * file.
+	 * 
+	 * @param blocks
+	 *            the received blocks as a little-endian bit array
+	 */
+	synchronized void restoreReceivedBlocks(final byte[] blocks) {
+		final BitSet restored = BitSet.valueOf(blocks);
+		if (restored.length() > this.blockCount) {
+			restored.clear(this.blockCount, restored.length());
+		}
+		this.received.or(restored);
+		this.requested.or(restored);
+		this.hashReceived();
+	}
+
+	/**
+	 * Discards all received data, e.g. after the piece failed verification.
+	 */
+	synchronized void reset() {
+		this.requested.clear();
+		this.received.clear();
+		this.endgame = false;
+		this.sha.reset();
+		this.hashedBlocks = 0;
+		this.hash = null;
+	}
+
+	/**
+	 * Records that another peer is requesting blocks of this piece.
+	 */
+	synchronized void addHolder() {
+		this.holders++;
+	}
+
+	/**
+	 * Records that a peer stopped requesting blocks of this piece.
+	 */
+	synchronized void removeHolder() {
+		this.holders--;
+	}
+
+	/**
+	 * @return the number of peers requesting blocks of this piece
+	 */
+	synchronized int getHolders() {
+		return this.holders;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("Piece [index=");
+		builder.append(this.index);
+		builder.append(", length=");
+		builder.append(this.length);
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,279 @@
+package edu.rutgers.cs.cs352.bt;
+
+
+/**
+ * Keeps count of how many connected peers have each piece, so that the rarest
+ * piece can be chosen without scanning every peer's bitfield. Pieces that the
+ * client still wants are kept in buckets by their availability; each bucket is
+ * a doubly-linked list threaded through arrays indexed by piece, so moving a
+ * piece between buckets when a count changes takes constant time.
+ * 
+ * The rarest piece a peer has is usually found by walking the buckets from the
+ * rarest, which stops at the first piece the peer has. When the peer has few
+ * of the wanted pieces that walk can pass over most of them, so it is cut off
+ * once it has done as much work as scanning the peer's bitfield would, and the
+ * bitfield is scanned instead.
+ * 
+ * This class is not thread-safe; it is only used from the client's main loop.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class PieceAvailability {
+
+	/**
+	 * Marks the end of a bucket list.
+	 */
+	private static final int NONE = -1;
+
+	/**
+	 * The number of bits that scanning a bitfield skips at a time.
+	 */
+	private static final int WORD_LENGTH = 64;
+
+	/**
+	 * The number of pieces in the torrent.
+	 */
+	private final int totalPieces;
+
+	/**
+	 * The number of connected peers that have each piece.
+	 */
+	private final int[] counts;
+
+	/**
+	 * Whether each piece is still wanted, i.e. linked into a bucket.
+	 */
+	private final boolean[] wanted;
+
+	/**
+	 * The next piece in the same bucket, for each piece.
+	 */
+	private final int[] next;
+
+	/**
+	 * The previous piece in the same bucket, for each piece.
+	 */
+	private final int[] prev;
+
+	/**
+	 * The first piece of each bucket, indexed by availability.
+	 */
+	private int[] heads;
+
+	/**
+	 * Creates a new index in which every piece is wanted and no peer has any
+	 * piece.
+	 * 
+	 * @param totalPieces
+	 *            the number of pieces in the torrent
+	 */
+	PieceAvailability(final int totalPieces) {
+		this.totalPieces = totalPieces;
+		this.counts = new int[totalPieces];
+		this.wanted = new boolean[totalPieces];
+		this.next = new int[totalPieces];
+		this.prev = new int[totalPieces];
+		this.heads = new int[8];
+		for (int i = 0; i < this.heads.length; i++) {
+			this.heads[i] = PieceAvailability.NONE;
+		}
+		for (int pieceIndex = totalPieces - 1; pieceIndex >= 0; pieceIndex--) {
+			this.setWanted(pieceIndex, true);
+		}
+	}
+
+	/**
+	 * Gives the number of connected peers that have the piece.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @return the availability of the piece
+	 */
+	int getAvailability(final int pieceIndex) {
+		return this.counts[pieceIndex];
+	}
+
+	/**
+	 * Counts every piece in a newly received peer bitfield.
+	 * 
+	 * @param bitfield
+	 *            the peer's bitfield
+	 */
+	void addBitfield(final Bitfield bitfield) {
+		for (int pieceIndex = bitfield.nextSetBit(0); pieceIndex >= 0; pieceIndex = bitfield
+				.nextSetBit(pieceIndex + 1)) {
+			this.increment(pieceIndex);
+		}
+	}
+
+	/**
+	 * Stops counting the pieces of a peer that has disconnected.
+	 * 
+	 * @param bitfield
+	 *            the peer's bitfield
+	 */
+	void removeBitfield(final Bitfield bitfield) {
+		for (int pieceIndex = bitfield.nextSetBit(0); pieceIndex >= 0; pieceIndex = bitfield
+				.nextSetBit(pieceIndex + 1)) {
+			this.decrement(pieceIndex);
+		}
+	}
+
+	/**
+	 * Records that one more peer has the piece.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 */
+	void increment(final int pieceIndex) {
+		final boolean linked = this.wanted[pieceIndex];
+		if (linked) {
+			this.unlink(pieceIndex);
+		}
+		this.counts[pieceIndex]++;
+		if (linked) {
+			this.link(pieceIndex);
+		}
+	}
+
+	/**
+	 * Records that one less peer has the piece.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 */
+	void decrement(final int pieceIndex) {
+		if (this.counts[pieceIndex] == 0) {
+			return;
+		}
+		final boolean linked = this.wanted[pieceIndex];
+		if (linked) {
+			this.unlink(pieceIndex);
+		}
+		this.counts[pieceIndex]--;
+		if (linked) {
+			this.link(pieceIndex);
+		}
+	}
+
+	/**
+	 * Sets whether the client still wants the piece. Pieces that the client
+	 * has or is already downloading aren't wanted.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 * @param wanted
+	 *            {@code true} if the piece should be chosen for download
+	 */
+	void setWanted(final int pieceIndex, final boolean wanted) {
+		if (this.wanted[pieceIndex] == wanted) {
+			return;
+		}
+		this.wanted[pieceIndex] = wanted;
+		if (wanted) {
+			this.link(pieceIndex);
+		} else {
+			this.unlink(pieceIndex);
+		}
+	}
+
+	/**
+	 * Finds the rarest wanted piece that the peer has.
+	 * 
+	 * @param peerBitfield
+	 *            the peer's bitfield
+	 * @return the piece index, or -1 if the peer has no wanted piece
+	 */
+	int rarestWanted(final Bitfield peerBitfield) {
+		if (peerBitfield == null) {
+			return PieceAvailability.NONE;
+		}
+		// Don't walk past more pieces than scanning the bitfield would visit
+		int budget = peerBitfield.cardinality()
+				+ (this.totalPieces / PieceAvailability.WORD_LENGTH);
+		// Every piece the peer has is counted at least once
+		for (int count = 1; count < this.heads.length; count++) {
+			for (int pieceIndex = this.heads[count]; pieceIndex != PieceAvailability.NONE; pieceIndex = this.next[pieceIndex]) {
+				if (peerBitfield.get(pieceIndex)) {
+					return pieceIndex;
+				}
+				if (--budget < 0) {
+					return this.rarestWantedOf(peerBitfield);
+				}
+			}
+		}
+		return PieceAvailability.NONE;
+	}
+
+	/**
+	 * Finds the rarest wanted piece that the peer has by scanning the pieces
+	 * that the peer has.
+	 * 
+	 * @param peerBitfield
+	 *            the peer's bitfield
+	 * @return the piece index, or -1 if the peer has no wanted piece
+	 */
+	private int rarestWantedOf(final Bitfield peerBitfield) {
+		int rarest = PieceAvailability.NONE;
+		for (int pieceIndex = peerBitfield.nextSetBit(0); pieceIndex >= 0; pieceIndex = peerBitfield
+				.nextSetBit(pieceIndex + 1)) {
+			if (this.wanted[pieceIndex]
+					&& ((rarest == PieceAvailability.NONE) || (this.counts[pieceIndex] < this.counts[rarest]))) {
+				rarest = pieceIndex;
+				if (this.counts[rarest] <= 1) {
+					// Nothing the peer has can be rarer
+					break;
+				}
+			}
+		}
+		return rarest;
+	}
+
+	/**
+	 * Adds the piece to the front of the bucket for its availability.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 */
+	private void link(final int pieceIndex) {
+		final int count = this.counts[pieceIndex];
+		if (count >= this.heads.length) {
+			final int[] larger = new int[Math.max(count + 1,
+					this.heads.length * 2)];
+			System.arraycopy(this.heads, 0, larger, 0, this.heads.length);
+			for (int i = this.heads.length; i < larger.length; i++) {
+				larger[i] = PieceAvailability.NONE;
+			}
+			this.heads = larger;
+		}
+		final int head = this.heads[count];
+		this.prev[pieceIndex] = PieceAvailability.NONE;
+		this.next[pieceIndex] = head;
+		if (head != PieceAvailability.NONE) {
+			this.prev[head] = pieceIndex;
+		}
+		this.heads[count] = pieceIndex;
+	}
+
+	/**
+	 * Removes the piece from the bucket for its availability.
+	 * 
+	 * @param pieceIndex
+	 *            the piece index
+	 */
+	private void unlink(final int pieceIndex) {
+		final int before = this.prev[pieceIndex];
+		final int after = this.next[pieceIndex];
+		if (before == PieceAvailability.NONE) {
+			this.heads[this.counts[pieceIndex]] = after;
+		} else {
+			this.next[before] = after;
+		}
+		if (after != PieceAvailability.NONE) {
+			this.prev[after] = before;
+		}
+		this.next[pieceIndex] = PieceAvailability.NONE;
+		this.prev[pieceIndex] = PieceAvailability.NONE;
+	}
+}
@@ -0,0 +1,220 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Rechecks the pieces already present in the output file at startup. The
+ * piece range is split across a {@link ForkJoinPool} so that every core hashes
+ * its own share of the file, reading with positional {@link Storage} reads
+ * into a buffer that each worker thread reuses.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class PieceRecheck {
+
+	/**
+	 * Logger for the recheck.
+	 */
+	private final static Logger LOGGER = Logger.getLogger(PieceRecheck.class
+			.getName());
+
+	/**
+	 * Ranges of at most this many pieces are hashed by a single task.
+	 */
+	private static final int PIECES_PER_TASK = 16;
+
+	/**
+	 * Progress is logged each time this percentage of pieces is checked.
+	 */
+	private static final int PROGRESS_STEP = 10;
+
+	/**
+	 * Hashes the pieces.
+	 */
+	private final PieceVerifier verifier;
+
+	/**
+	 * The output file to check.
+	 */
+	private final Storage storage;
+
+	/**
+	 * The number of pieces in the file.
+	 */
+	private final int totalPieces;
+
+	/**
+	 * The default length of each piece.
+	 */
+	private final int pieceLength;
+
+	/**
+	 * The total length of the file.
+	 */
+	private final long fileLength;
+
+	/**
+	 * Whether each piece matched its hash.
+	 */
+	private final boolean[] valid;
+
+	/**
+	 * The number of pieces checked so far.
+	 */
+	private final AtomicInteger checked = new AtomicInteger();
+
+	/**
+	 * Set once the recheck should stop early.
+	 */
+	private volatile boolean cancelled = false;
+
+	/**
+	 * A piece-sized read buffer for each worker thread.
+	 */
+	private final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(PieceRecheck.this.pieceLength);
+		}
+	};
+
+	/**
+	 * Creates a new recheck of the output file.
+	 * 
+	 * @param verifier
+	 *            hashes the pieces
+	 * @param storage
+	 *            the output file
+	 * @param totalPieces
+	 *            the number of pieces in the file
+	 * @param pieceLength
+	 *            the default length of each piece
+	 * @param fileLength
+	 *            the total length of the file
+	 */
+	PieceRecheck(final PieceVerifier verifier, final Storage storage,
+			final int totalPieces, final int pieceLength, final long fileLength) {
+		this.verifier = verifier;
+		this.storage = storage;
+		this.totalPieces = totalPieces;
+		this.pieceLength = pieceLength;
+		this.fileLength = fileLength;
+		this.valid = new boolean[totalPieces];
+	}
+
+	/**
+	 * Checks every piece and waits for the result.
+	 * 
+	 * @return whether each piece matched its hash; pieces that weren't checked
+	 *         because the recheck was cancelled are reported as not matching
+	 * @throws IOException
+	 *             if the file couldn't be read
+	 */
+	boolean[] run() throws IOException {
+		final ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new RangeTask(0, this.totalPieces));
+		} catch (final RuntimeException re) {
+			// The pool may rethrow a copy of the task's exception
+			for (Throwable cause = re.getCause(); cause != null; cause = cause
+					.getCause()) {
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw re;
+		} finally {
+			pool.shutdown();
+		}
+		PieceRecheck.LOGGER.info("Rechecked " + this.checked.get() + " of "
+				+ this.totalPieces + " pieces"
+				+ (this.cancelled ? " before being cancelled" : ""));
+		return this.valid;
+	}
+
+	/**
+	 * Stops the recheck as soon as the pieces being hashed are done.
+	 */
+	void cancel() {
+		this.cancelled = true;
+	}
+
+	/**
+	 * @return the number of pieces checked so far
+	 */
+	int getCheckedPieces() {
+		return this.checked.get();
+	}
+
+	/**
+	 * Reads and hashes a single piece.
+	 * 
+	 * @param pieceIndex
+	 *            the zero-based index of the piece
+	 * @throws IOException
+	 *             if the piece couldn't be read
+	 */
+	private void check(final int pieceIndex) throws IOException {
+		final long start = (long) pieceIndex * this.pieceLength;
+		final ByteBuffer buf = this.buffer.get();
+		buf.clear();
+		buf.limit((int) Math.min(this.pieceLength, this.fileLength - start));
+		this.storage.read(buf, start);
+		buf.flip();
+		this.valid[pieceIndex] = this.verifier.verify(pieceIndex, buf);
+
+		final int done = this.checked.incrementAndGet();
+		final int step = Math.max(1,
+				(this.totalPieces * PieceRecheck.PROGRESS_STEP) / 100);
+		if ((done % step) == 0) {
+			PieceRecheck.LOGGER.info("Rechecked "
+					+ ((done * 100L) / this.totalPieces) + "% of pieces");
+		}
+	}
+
+	/**
+	 * Checks a range of pieces, splitting it in half until it is small enough.
+	 */
+	private class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The first piece of the range.
+		 */
+		private final int from;
+
+		/**
+		 * One past the last piece of the range.
+		 */
+		private final int to;
+
+		RangeTask(final int from, final int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if ((this.to - this.from) <= PieceRecheck.PIECES_PER_TASK) {
+				for (int pieceIndex = this.from; (pieceIndex < this.to)
+						&& !PieceRecheck.this.cancelled; pieceIndex++) {
+					try {
+						PieceRecheck.this.check(pieceIndex);
+					} catch (final IOException ioe) {
+						throw new RuntimeException(ioe);
+					}
+				}
+				return;
+			}
+			final int middle = (this.from + this.to) >>> 1;
+			RecursiveAction.invokeAll(new RangeTask(this.from, middle),
+					new RangeTask(middle, this.to));
+		}
+	}
+}
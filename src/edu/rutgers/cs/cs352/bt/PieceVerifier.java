@@ -0,0 +1,295 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.cs352.bt.Message.VerifiedMessage;
+
+/**
+ * Hashes completed pieces on a bounded pool of worker threads so that the
+ * client's main loop keeps handling peer messages in the meantime. Verified
+ * pieces are written to the output file by the worker, and the result is
+ * queued for the client as a {@link VerifiedMessage}. Submitting never runs
+ * the work on the caller; instead the client stops starting new pieces while
+ * the verifier is {@link #isBusy() busy}.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class PieceVerifier {
+
+	/**
+	 * Logger for the verifier.
+	 */
+	private final static Logger LOGGER = Logger.getLogger(PieceVerifier.class
+			.getName());
+
+	/**
+	 * The default number of hashing threads, one per core.
+	 */
+	static final int DEFAULT_THREADS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * The number of pieces that may be waiting for or being hashed, per
+	 * thread, before the verifier is busy.
+	 */
+	private static final int PIECES_IN_FLIGHT_PER_THREAD = 4;
+
+	/**
+	 * A SHA-1 digest for each thread, reused for every piece it hashes.
+	 */
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (final NoSuchAlgorithmException nsae) {
+				// Won't happen!
+				throw new IllegalStateException(nsae);
+			}
+		}
+	};
+
+	/**
+	 * The expected SHA-1 hash of each piece.
+	 */
+	private final ByteBuffer[] pieceHashes;
+
+	/**
+	 * The output file that verified pieces are written to.
+	 */
+	private final Storage storage;
+
+	/**
+	 * The default length of each piece.
+	 */
+	private final int pieceLength;
+
+	/**
+	 * The client's task queue that results are posted to.
+	 */
+	private final LinkedBlockingQueue<MessageTask> tasks;
+
+	/**
+	 * The hashing threads.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The number of pieces submitted and not yet hashed and written.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * The number of pieces in flight at which the verifier is busy.
+	 */
+	private final int maxInFlight;
+
+	/**
+	 * Creates a new verifier.
+	 * 
+	 * @param threads
+	 *            the number of hashing threads
+	 * @param pieceHashes
+	 *            the expected hash of each piece
+	 * @param storage
+	 *            the output file
+	 * @param pieceLength
+	 *            the default length of each piece
+	 * @param tasks
+	 *            the client's task queue
+	 */
+	PieceVerifier(final int threads, final ByteBuffer[] pieceHashes,
+			final Storage storage, final int pieceLength,
+			final LinkedBlockingQueue<MessageTask> tasks) {
+		this.pieceHashes = pieceHashes;
+		this.storage = storage;
+		this.pieceLength = pieceLength;
+		this.tasks = tasks;
+
+		final int poolSize = Math.max(1, threads);
+		this.maxInFlight = poolSize * PieceVerifier.PIECES_IN_FLIGHT_PER_THREAD;
+		// Unbounded, since the client stops completing pieces once it is busy
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int count = 0;
+
+					@Override
+					public synchronized Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "PieceVerifier-"
+								+ this.count++);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Tells whether enough pieces are waiting to be hashed and written that
+	 * no new piece should be started until some are done.
+	 * 
+	 * @return {@code true} if the verifier is busy
+	 */
+	boolean isBusy() {
+		return this.inFlight.get() >= this.maxInFlight;
+	}
+
+	/**
+	 * Checks that the SHA-1 hash of the piece data matches the hash in the
+	 * torrent metainfo. May be called from any thread.
+	 * 
+	 * @param pieceIndex
+	 *            the zero-based index of the piece
+	 * @param piece
+	 *            the piece data
+	 * @return {@code true} if the data is verifiably part of the file
+	 */
+	boolean verify(final int pieceIndex, final byte[] piece) {
+		final MessageDigest sha = PieceVerifier.DIGEST.get();
+		sha.reset();
+		final byte[] hash = sha.digest(piece);
+		return Arrays.equals(this.pieceHashes[pieceIndex].array(), hash);
+	}
+
+	/**
+	 * Checks that the SHA-1 hash of the bytes remaining in the buffer matches
+	 * the hash in the torrent metainfo. May be called from any thread.
+	 * 
+	 * @param pieceIndex
+	 *            the zero-based index of the piece
+	 * @param piece
+	 *            the piece data, which is consumed
+	 * @return {@code true} if the data is verifiably part of the file
+	 */
+	boolean verify(final int pieceIndex, final ByteBuffer piece) {
+		final MessageDigest sha = PieceVerifier.DIGEST.get();
+		sha.reset();
+		sha.update(piece);
+		return Arrays.equals(this.pieceHashes[pieceIndex].array(), sha.digest());
+	}
+
+	/**
+	 * Queues a downloaded piece to be checked and, if it is valid, written to
+	 * the output file.
+	 * 
+	 * @param peer
+	 *            the peer that the piece was downloaded from
+	 * @param pieceIndex
+	 *            the zero-based index of the piece
+	 * @param piece
+	 *            the piece data
+	 * @param hash
+	 *            the SHA-1 hash of the piece data if it was already
+	 *            computed, or {@code null} to hash the data
+	 */
+	void submit(final Peer peer, final int pieceIndex, final byte[] piece,
+			final byte[] hash) {
+		this.inFlight.incrementAndGet();
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						PieceVerifier.this.check(peer, pieceIndex, piece, hash);
+					} finally {
+						PieceVerifier.this.inFlight.decrementAndGet();
+					}
+				}
+			});
+		} catch (final RejectedExecutionException ree) {
+			this.inFlight.decrementAndGet();
+			PieceVerifier.LOGGER.warning("Piece [pieceIndex=" + pieceIndex
+					+ "] not verified, verifier is shut down");
+		}
+	}
+
+	/**
+	 * Hashes a piece unless its hash is given and, if it is valid, writes it
+	 * to the output file. Posts the result to the client's task queue.
+	 * 
+	 * @param peer
+	 *            the peer that the piece was downloaded from
+	 * @param pieceIndex
+	 *            the zero-based index of the piece
+	 * @param piece
+	 *            the piece data
+	 * @param hash
+	 *            the SHA-1 hash of the piece data, or {@code null}
+	 */
+	private void check(final Peer peer, final int pieceIndex,
+			final byte[] piece, final byte[] hash) {
+		boolean verified = (hash != null) ? Arrays.equals(
+				this.pieceHashes[pieceIndex].array(), hash) : this.verify(
+				pieceIndex, piece);
+		if (verified) {
+			PieceVerifier.LOGGER.info("Piece [pieceIndex=" + pieceIndex
+					+ "] verified.");
+			try {
+				this.write(pieceIndex, piece);
+			} catch (final IOException ioe) {
+				PieceVerifier.LOGGER.log(Level.SEVERE,
+						"Unable to write piece [pieceIndex=" + pieceIndex
+								+ "] to file", ioe);
+				verified = false;
+			}
+		} else {
+			PieceVerifier.LOGGER.warning("Piece [pieceIndex=" + pieceIndex
+					+ "] doesn't match.");
+		}
+		this.tasks.add(new MessageTask(peer, new VerifiedMessage(pieceIndex,
+				verified)));
+	}
+
+	/**
+	 * Writes a verified piece to its position in the output file.
+	 * 
+	 * @param pieceIndex
+	 *            the zero-based index of the piece
+	 * @param piece
+	 *            the piece data
+	 * @throws IOException
+	 */
+	private void write(final int pieceIndex, final byte[] piece)
+			throws IOException {
+		this.storage.write(ByteBuffer.wrap(piece), (long) pieceIndex
+				* this.pieceLength);
+	}
+
+	/**
+	 * Stops the hashing threads once the queued pieces are done.
+	 */
+	void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Waits for the queued pieces to be hashed and written after
+	 * {@link #shutdown()}.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds
+	 * @return {@code true} if every queued piece is done
+	 */
+	boolean awaitTermination(final long timeout) {
+		try {
+			return this.executor.awaitTermination(timeout,
+					TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
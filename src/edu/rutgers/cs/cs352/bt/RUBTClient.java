@@ -7,26 +7,33 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import edu.rutgers.cs.cs352.bt.Message.BitfieldMessage;
 import edu.rutgers.cs.cs352.bt.Message.HaveMessage;
 import edu.rutgers.cs.cs352.bt.Message.PieceMessage;
+import edu.rutgers.cs.cs352.bt.Message.ReceivedMessage;
 import edu.rutgers.cs.cs352.bt.Message.RequestMessage;
+import edu.rutgers.cs.cs352.bt.Message.VerifiedMessage;
 import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
-import edu.rutgers.cs.cs352.bt.util.Utility;
 
 /**
  * Main class for RUBTClient. The client connects to peers in the torrent and
@@ -96,6 +103,16 @@ public class RUBTClient extends Thread {
 		RUBTClient client;
 		try {
 			client = new RUBTClient(tInfo, args[1]);
+			RUBTClient.configure(client);
+
+			// Save the resume file and leave the swarm on exit
+			final RUBTClient exitingClient = client;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					exitingClient.shutdown();
+				}
+			});
 
 			// Launches the client as a thread
 			client.start();
@@ -106,6 +123,66 @@ public class RUBTClient extends Thread {
 		}
 	}
 
+	/**
+	 * Applies the tuning options given as system properties, e.g.
+	 * {@code -Drubt.uploadLimit=65536}. Options that aren't given keep their
+	 * defaults:
+	 * <ul>
+	 * <li>{@code rubt.uploadLimit}, {@code rubt.downloadLimit}: global limits
+	 * in bytes per second, 0 for none</li>
+	 * <li>{@code rubt.peerUploadLimit}, {@code rubt.peerDownloadLimit}:
+	 * per-peer limits in bytes per second, 0 for none</li>
+	 * <li>{@code rubt.requestWindow}: outstanding block requests per peer</li>
+	 * <li>{@code rubt.unchokeSlots}: peers unchoked by rank</li>
+	 * <li>{@code rubt.maxConnections}, {@code rubt.maxHalfOpen}: peer
+	 * connections kept, and connecting at once</li>
+	 * <li>{@code rubt.mappedStorage}: {@code false} to not memory-map the
+	 * output file</li>
+	 * </ul>
+	 * 
+	 * @param client
+	 *            the client to configure, before it is started
+	 */
+	private static void configure(final RUBTClient client) {
+		final Long uploadLimit = Long.getLong("rubt.uploadLimit");
+		if (uploadLimit != null) {
+			client.setUploadLimit(uploadLimit);
+		}
+		final Long downloadLimit = Long.getLong("rubt.downloadLimit");
+		if (downloadLimit != null) {
+			client.setDownloadLimit(downloadLimit);
+		}
+		final Long peerUploadLimit = Long.getLong("rubt.peerUploadLimit");
+		if (peerUploadLimit != null) {
+			client.setPeerUploadLimit(peerUploadLimit);
+		}
+		final Long peerDownloadLimit = Long.getLong("rubt.peerDownloadLimit");
+		if (peerDownloadLimit != null) {
+			client.setPeerDownloadLimit(peerDownloadLimit);
+		}
+		final Integer requestWindow = Integer.getInteger("rubt.requestWindow");
+		if (requestWindow != null) {
+			client.setRequestWindow(requestWindow);
+		}
+		final Integer unchokeSlots = Integer.getInteger("rubt.unchokeSlots");
+		if (unchokeSlots != null) {
+			client.setUnchokeSlots(unchokeSlots);
+		}
+		final Integer maxConnections = Integer
+				.getInteger("rubt.maxConnections");
+		if (maxConnections != null) {
+			client.setMaxConnections(maxConnections);
+		}
+		final Integer maxHalfOpen = Integer.getInteger("rubt.maxHalfOpen");
+		if (maxHalfOpen != null) {
+			client.setMaxHalfOpen(maxHalfOpen);
+		}
+		final String mappedStorage = System.getProperty("rubt.mappedStorage");
+		if (mappedStorage != null) {
+			client.setMappedStorage(Boolean.parseBoolean(mappedStorage));
+		}
+	}
+
 	/**
 	 * The TorrentInfo object containing information for the torrent metainfo
 	 * file.
@@ -118,19 +195,41 @@ public class RUBTClient extends Thread {
 	/**
 	 * The total length of the file.
 	 */
-	private final int fileLength;
+	private final long fileLength;
 	/**
 	 * The length of each piece of the file.
 	 */
 	private final int pieceLength;
 	/**
-	 * The name to save the file as.
+	 * The name to save the file as, or the directory to save the files of a
+	 * multi-file torrent in.
 	 */
 	private final String outFileName;
+	/**
+	 * The files that the torrent is saved as, in torrent order.
+	 */
+	private final File[] outFiles;
 	/**
 	 * The file to write to.
 	 */
-	private RandomAccessFile outFile;
+	private Storage storage;
+	/**
+	 * Whether the output file is memory-mapped rather than accessed through
+	 * its channel.
+	 */
+	private boolean mappedStorage = true;
+
+	/**
+	 * Sets whether the output file is memory-mapped. Mapping lets the page
+	 * cache serve uploads and rechecks; it may be turned off where address
+	 * space is scarce.
+	 * 
+	 * @param mappedStorage
+	 *            {@code true} to map the output file
+	 */
+	void setMappedStorage(final boolean mappedStorage) {
+		this.mappedStorage = mappedStorage;
+	}
 	/**
 	 * A queue to process message tasks as received and queued from each peer.
 	 */
@@ -147,37 +246,126 @@ public class RUBTClient extends Thread {
 	private static final byte[] BYTES_GROUP = { 'G', 'P', '1', '6' };
 
 	/**
-	 * The initial port for the local client to listen on.
+	 * Accepts connections from remote peers on the announced port.
 	 */
-	private final int port = 6881;
+	private PeerAcceptor acceptor;
 
 	/**
-	 * The local client's bitfield.
+	 * The local client's bitfield. Peer event loops read it to send their
+	 * initial Bitfield message while the main loop sets bits in it.
 	 */
-	private byte[] bitfield;
+	private volatile Bitfield bitfield;
 
 	/**
-	 * The amount of bytes downloaded by the client from peers.
+	 * The amount of bytes downloaded by the client from peers. Counters are
+	 * volatile since tracker announces read them from the timer thread.
 	 */
-	private int downloaded;
+	private volatile long downloaded;
 	/**
 	 * The amount of bytes uploaded by the client to peers.
 	 */
-	private int uploaded;
+	private volatile long uploaded;
 	/**
 	 * The amount of bytes required to download.
 	 */
-	private int left;
+	private volatile long left;
 	
-	private int maxPeers = 3;
-	private int peersUnchoked = 0;
+	/**
+	 * Counts how many connected peers have each piece.
+	 */
+	private final PieceAvailability availability;
+
+	/**
+	 * The pieces that are currently being downloaded, by piece index. Also read
+	 * by the timer thread when saving the fast-resume file.
+	 */
+	private final Map<Integer, Piece> activePieces = new ConcurrentHashMap<Integer, Piece>();
+
+	/**
+	 * The number of block requests to keep outstanding with each peer.
+	 */
+	private int requestWindow = Peer.DEFAULT_REQUEST_WINDOW;
+
+	/**
+	 * Sets the number of block requests to keep outstanding with each newly
+	 * connected peer.
+	 * 
+	 * @param requestWindow
+	 *            the number of outstanding requests
+	 */
+	void setRequestWindow(final int requestWindow) {
+		this.requestWindow = requestWindow;
+	}
+
+	/**
+	 * Decides which peers the client uploads to.
+	 */
+	private final Choker choker = new Choker();
+
+	/**
+	 * Sets the number of peers that are unchoked by rank, not counting the
+	 * optimistic unchoke.
+	 * 
+	 * @param unchokeSlots
+	 *            the number of peers
+	 */
+	void setUnchokeSlots(final int unchokeSlots) {
+		this.choker.setUnchokeSlots(unchokeSlots);
+	}
+
+	/**
+	 * Limits the rate of reads from and writes to every peer.
+	 */
+	private final BandwidthLimiter limiter = new BandwidthLimiter();
+
+	/**
+	 * Sets the global upload limit. May be changed while the client runs.
+	 * 
+	 * @param rate
+	 *            the limit in bytes per second, or 0 for no limit
+	 */
+	void setUploadLimit(final long rate) {
+		this.limiter.setUploadRate(rate);
+	}
+
+	/**
+	 * Sets the global download limit. May be changed while the client runs.
+	 * 
+	 * @param rate
+	 *            the limit in bytes per second, or 0 for no limit
+	 */
+	void setDownloadLimit(final long rate) {
+		this.limiter.setDownloadRate(rate);
+	}
+
+	/**
+	 * Sets the upload limit of each peer. May be changed while the client
+	 * runs.
+	 * 
+	 * @param rate
+	 *            the limit in bytes per second, or 0 for no limit
+	 */
+	void setPeerUploadLimit(final long rate) {
+		this.limiter.setPeerUploadRate(rate);
+	}
+
+	/**
+	 * Sets the download limit of each peer. May be changed while the client
+	 * runs.
+	 * 
+	 * @param rate
+	 *            the limit in bytes per second, or 0 for no limit
+	 */
+	void setPeerDownloadLimit(final long rate) {
+		this.limiter.setPeerDownloadRate(rate);
+	}
 
 	/**
 	 * Retrieve the amount of bytes the client has downladed.
 	 * 
 	 * @return the amount of bytes downloaded
 	 */
-	private int getDownloaded() {
+	private long getDownloaded() {
 		return this.downloaded;
 	}
 
@@ -194,14 +382,14 @@ public class RUBTClient extends Thread {
 	/**
 	 * @return the uploaded
 	 */
-	private int getUploaded() {
+	private long getUploaded() {
 		return this.uploaded;
 	}
 
 	/**
 	 * @return the left
 	 */
-	private int getLeft() {
+	private long getLeft() {
 		return this.left;
 	}
 
@@ -211,15 +399,82 @@ public class RUBTClient extends Thread {
 	private final List<Peer> peers = Collections
 			.synchronizedList(new LinkedList<Peer>());
 
+	/**
+	 * The startup recheck of the output file, while it is running.
+	 */
+	private volatile PieceRecheck recheck;
+
+	/**
+	 * Hashes and writes downloaded pieces off the main loop.
+	 */
+	private PieceVerifier verifier;
+
+	/**
+	 * The engine that drives all peer connections.
+	 */
+	private PeerEngine engine;
+
+	/**
+	 * The fast-resume file kept next to the output file.
+	 */
+	private FastResume resume;
+
+	/**
+	 * The time in milliseconds between saves of the fast-resume file.
+	 */
+	private static final long RESUME_SAVE_INTERVAL = 60000;
+
 	/**
 	 * A timer for scheduling tracker announces.
 	 */
 	final Timer trackerTimer = new Timer();
 
 	/**
-	 * Tracker interface.
+	 * Dials the peers given by the trackers.
 	 */
-	final Tracker tracker;
+	private final ConnectionManager connections;
+
+	/**
+	 * Sets the number of peer connections to keep.
+	 * 
+	 * @param maxConnections
+	 *            the number of connections
+	 */
+	void setMaxConnections(final int maxConnections) {
+		this.connections.setMaxConnections(maxConnections);
+	}
+
+	/**
+	 * Sets the number of peer connections that may be connecting or
+	 * handshaking at once.
+	 * 
+	 * @param maxHalfOpen
+	 *            the number of connections
+	 */
+	void setMaxHalfOpen(final int maxHalfOpen) {
+		this.connections.setMaxHalfOpen(maxHalfOpen);
+	}
+
+	/**
+	 * Runs tracker announces, shared by every tracker tier.
+	 */
+	private final ExecutorService trackerExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "Tracker-"
+							+ this.count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Announces to the torrent's trackers.
+	 */
+	final AnnounceManager announcer;
 	/**
 	 * Flag to keep the main loop running. Once false, the client *should* exit.
 	 */
@@ -231,37 +486,166 @@ public class RUBTClient extends Thread {
 	 */
 	private static class TrackerAnnounceTask extends TimerTask {
 		private final RUBTClient client;
+		private final String event;
 
-		public TrackerAnnounceTask(final RUBTClient client) {
+		public TrackerAnnounceTask(final RUBTClient client, final String event) {
 			this.client = client;
+			this.event = event;
 		}
 
 		@Override
 		public void run() {
-			List<Peer> peers = null;
-			try {
-				// Get peers
-				peers = this.client.tracker.announce(
-						this.client.getDownloaded(), this.client.getUploaded(),
-						this.client.getLeft(), "");
-
-				// Add new peers
-				if ((peers != null) && !peers.isEmpty()) {
-					this.client.addPeers(peers);
-				}
+			// Size the connections and the request by the swarm, and
+			// refresh the swarm size in the background for the next announce
+			final int useful = this.client.getUsefulPeers();
+			this.client.connections.setSwarmSize(useful);
+			this.client.announcer.setNumWant(this.client.getNumWant(useful));
+			this.client.announcer.refreshSwarmStats(this.client.tInfo.info_hash
+					.array());
+
+			// Doesn't wait for the trackers; new peers are added by the
+			// announcer as each tier answers, and the next announce is
+			// scheduled once the first tier has answered
+			this.client.announcer.announce(this.client.getDownloaded(),
+					this.client.getUploaded(), this.client.getLeft(),
+					this.event);
+		}
+	}
 
-				this.client.trackerTimer.schedule(this,
-						this.client.tracker.getInterval() * 1000);
+	/**
+	 * The time in milliseconds to wait before announcing again after every
+	 * tracker failed.
+	 */
+	private static final long ANNOUNCE_RETRY_INTERVAL = 30000;
 
-			} catch (final IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (final BencodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (final IllegalStateException ise) {
+	/**
+	 * The longest time in milliseconds that shutdown waits for the "stopped"
+	 * announce.
+	 */
+	private static final long STOPPED_ANNOUNCE_TIMEOUT = 5000;
 
-			}
+	/**
+	 * The most peers to ask the trackers for.
+	 */
+	private static final int MAX_NUMWANT = 50;
+
+	/**
+	 * Counts the peers in the swarm worth connecting to. A seed has no use for
+	 * other seeds, so only leechers count once the file is complete.
+	 * 
+	 * @return the number of peers, or -1 if the swarm size isn't known
+	 */
+	private int getUsefulPeers() {
+		final ScrapeStats swarm = this.announcer.getSwarmStats();
+		if (swarm == null) {
+			return -1;
+		}
+		return (this.left == 0) ? swarm.getLeechers() : swarm.getSwarmSize();
+	}
+
+	/**
+	 * Decides how many peers to ask the trackers for, based on the size of
+	 * the swarm and the peers already connected.
+	 * 
+	 * @param useful
+	 *            the number of peers in the swarm worth connecting to, or -1
+	 *            if it isn't known
+	 * @return the number of peers, or -1 for the trackers' default if the
+	 *         swarm size isn't known
+	 */
+	private int getNumWant(final int useful) {
+		if (useful < 0) {
+			return -1;
+		}
+		final int connected;
+		synchronized (this.peers) {
+			connected = this.peers.size();
+		}
+		return Math.max(0, Math.min(RUBTClient.MAX_NUMWANT, useful) - connected);
+	}
+
+	/**
+	 * Schedules the next announce once an announce is done. Called by the
+	 * announcer from a tracker thread.
+	 * 
+	 * @param event
+	 *            the event of the announce that finished
+	 * @param answered
+	 *            {@code true} if a tracker answered
+	 */
+	void announceFinished(final String event, final boolean answered) {
+		if (!this.keepRunning || "stopped".equals(event)) {
+			return;
+		}
+		long delay;
+		String nextEvent;
+		if (answered) {
+			RUBTClient.LOGGER.info("Connected to tracker on port "
+					+ this.announcer.getPort());
+			delay = this.announcer.getInterval() * 1000L;
+			nextEvent = "";
+		} else {
+			// Keep the event until a tracker has heard it
+			RUBTClient.LOGGER.warning("Every tracker failed to answer");
+			delay = RUBTClient.ANNOUNCE_RETRY_INTERVAL;
+			nextEvent = event;
+		}
+		try {
+			this.trackerTimer.schedule(
+					new TrackerAnnounceTask(this, nextEvent), delay);
+		} catch (final IllegalStateException ise) {
+			// Timer was cancelled by shutdown
+		}
+	}
+
+	/**
+	 * Define the timed task to run a choking round on the main loop.
+	 * 
+	 */
+	private static class RechokeTask extends TimerTask {
+		private final RUBTClient client;
+
+		public RechokeTask(final RUBTClient client) {
+			this.client = client;
+		}
+
+		@Override
+		public void run() {
+			this.client.tasks.add(new MessageTask(null, Message.RECHOKE));
+		}
+	}
+
+	/**
+	 * Define the timed task to dial candidates whose backoff is over.
+	 * 
+	 */
+	private static class DialTask extends TimerTask {
+		private final RUBTClient client;
+
+		public DialTask(final RUBTClient client) {
+			this.client = client;
+		}
+
+		@Override
+		public void run() {
+			this.client.connections.fill();
+		}
+	}
+
+	/**
+	 * Define the timed task to save the fast-resume file.
+	 * 
+	 */
+	private static class ResumeSaveTask extends TimerTask {
+		private final RUBTClient client;
+
+		public ResumeSaveTask(final RUBTClient client) {
+			this.client = client;
+		}
+
+		@Override
+		public void run() {
+			this.client.saveResume();
 		}
 	}
 
@@ -277,14 +661,18 @@ public class RUBTClient extends Thread {
 	public RUBTClient(final TorrentInfo tInfo, final String outFile) {
 		this.tInfo = tInfo;
 		this.outFileName = outFile;
+		this.outFiles = RUBTClient.getOutputFiles(tInfo, outFile);
 		try {
 			RUBTClient.LOGGER.info("Starting with peer id \""
 					+ new String(this.peerId, "US-ASCII") + "\"");
 		} catch (final UnsupportedEncodingException uee) {
 			// Nope, can't happen
 		}
-		this.tracker = new Tracker(this.peerId, this.tInfo.info_hash.array(),
-				this.tInfo.announce_url.toString(), this.port);
+		this.connections = new ConnectionManager(this,
+				this.tInfo.info_hash.array(), this.peerId);
+		this.announcer = new AnnounceManager(this.tInfo.announce_tiers,
+				this.peerId, this.tInfo.info_hash.array(),
+				PeerAcceptor.FIRST_PORT, this.trackerExecutor, this);
 
 		this.downloaded = 0;
 		this.uploaded = 0;
@@ -293,6 +681,7 @@ public class RUBTClient extends Thread {
 		this.totalPieces = this.tInfo.piece_hashes.length;
 		this.fileLength = this.tInfo.file_length;
 		this.pieceLength = this.tInfo.piece_length;
+		this.availability = new PieceAvailability(this.totalPieces);
 
 		RUBTClient.LOGGER.info("Total pieces: " + this.totalPieces);
 		RUBTClient.LOGGER.info("File length: " + this.fileLength);
@@ -310,19 +699,35 @@ public class RUBTClient extends Thread {
 	public void run() {
 
 		try {
-			this.outFile = new RandomAccessFile(this.outFileName, "rw");
-
-			// Allocate the total file
-			if (this.outFile.length() != this.fileLength) {
-				this.outFile.setLength(this.fileLength);
+			this.storage = this.openStorage();
+
+			this.verifier = new PieceVerifier(PieceVerifier.DEFAULT_THREADS,
+					this.tInfo.piece_hashes, this.storage,
+					this.pieceLength, this.tasks);
+
+			// Set client bitfield from the resume file, or recheck the output
+			// file if it can't be trusted
+			this.resume = new FastResume(this.outFileName, this.outFiles,
+					this.tInfo.info_hash.array(), this.totalPieces);
+			if (!this.loadResume()) {
+				this.setBitfield();
+			}
+			if (!this.keepRunning) {
+				// Shut down during the recheck, so don't start on peers
+				return;
 			}
-
-			// Set client bitfield
-			this.setBitfield();
 
 			RUBTClient.LOGGER.info("Starting bitfield: "
 					+ this.getBitfieldString());
 
+			this.engine = new PeerEngine(PeerEngine.DEFAULT_EVENT_LOOPS);
+			this.engine.start();
+
+			// Listen for incoming peers on the port announced to the tracker
+			this.acceptor = new PeerAcceptor(this, this.tInfo.info_hash
+					.array(), this.peerId);
+			this.announcer.setPort(this.acceptor.getPort());
+			this.acceptor.start();
 		} catch (final FileNotFoundException fnfe) {
 			RUBTClient.LOGGER.log(Level.SEVERE,
 					"Unable to open output file for writing!", fnfe);
@@ -330,54 +735,24 @@ public class RUBTClient extends Thread {
 			return;
 		} catch (IOException ioe) {
 			RUBTClient.LOGGER.log(Level.SEVERE,
-					"I/O exception encountered when accessing output file!",
+					"I/O exception encountered when starting the client!",
 					ioe);
 			// Exit right now, since nothing else was started yet
 			return;
 		}
 
-		// Send "started" announce and attempt to connect through ports 6881 -
-		// 6889
-		List<Peer> peers = null;
-		int announcePortIncrement;
-		boolean trackerFailure = true;
-		for (announcePortIncrement = 0; (announcePortIncrement < 9)
-				&& (trackerFailure == true); announcePortIncrement++) {
-			if (announcePortIncrement != 0) {
-				RUBTClient.LOGGER.warning("Retrying on a new port");
-			}
-			try {
-				peers = this.tracker.announce(this.getDownloaded(),
-						this.getUploaded(), this.getLeft(), "started");
-				trackerFailure = false;
-				RUBTClient.LOGGER.log(
-						Level.INFO,
-						"Connected to tracker on port "
-								+ this.tracker.getPort());
-			} catch (final IOException ioe) {
-				this.tracker.setPort(this.tracker.getPort() + 1);
-				RUBTClient.LOGGER
-						.log(Level.WARNING,
-								"I/O exception encountered and communication with tracker failed",
-								ioe);
-				trackerFailure = true;
-			} catch (final BencodingException be) {
-				this.tracker.setPort(this.tracker.getPort() + 1);
-				RUBTClient.LOGGER.log(Level.WARNING,
-						"Tracker response invalid.", be);
-				trackerFailure = true;
-			}
-		}
+		// Send "started" announce without waiting for the trackers. Peers
+		// are added by the announcer as each tier answers, and the regular
+		// announces are scheduled from then on.
+		this.announcer.announce(this.getDownloaded(), this.getUploaded(),
+				this.getLeft(), "started");
 
-		this.addPeers(peers);
-		{
-			// Schedule the first "regular" announce - the rest are schedule by
-			// the
-			// task itself
-			final int interval = this.tracker.getInterval();
-			this.trackerTimer.schedule(new TrackerAnnounceTask(this),
-					interval * 1000);
-		}
+		this.trackerTimer.schedule(new RechokeTask(this),
+				Choker.ROUND_PERIOD, Choker.ROUND_PERIOD);
+		this.trackerTimer.schedule(new DialTask(this),
+				ConnectionManager.DIAL_INTERVAL, ConnectionManager.DIAL_INTERVAL);
+		this.trackerTimer.schedule(new ResumeSaveTask(this),
+				RUBTClient.RESUME_SAVE_INTERVAL, RUBTClient.RESUME_SAVE_INTERVAL);
 
 		// Main loop:
 		while (this.keepRunning) {
@@ -402,7 +777,7 @@ public class RUBTClient extends Thread {
 					peer.setLocalChoked(false);
 
 					if (!peer.amChoked() && peer.amInterested()) {
-						this.chooseAndRequestPiece(peer);
+						this.requestPieces(peer);
 					} else {
 						peer.sendMessage(Message.KEEP_ALIVE);
 					}
@@ -411,15 +786,9 @@ public class RUBTClient extends Thread {
 					// Update internal state
 					peer.setRemoteInterested(true);
 
-					if (this.peersUnchoked < this.maxPeers) {
-						this.peersUnchoked++;
-						peer.sendMessage(Message.UNCHOKE);
-						peer.setRemoteChoked(false);
-					} else {
-						peer.sendMessage(Message.CHOKE);
-						peer.setRemoteChoked(true);
-					}
-					
+					// Unchoke right away if a slot is free, otherwise wait for
+					// the next choking round
+					this.choker.interested(peer, this.getPeers());
 					break;
 				case Message.ID_UNINTERESTED:
 					// Update internal state
@@ -429,7 +798,24 @@ public class RUBTClient extends Thread {
 				case Message.ID_BITFIELD:
 					// Set peer bitfield
 					final BitfieldMessage bitfieldMsg = (BitfieldMessage) msg;
-					peer.setBitfield(bitfieldMsg.getBitfield());
+					if (bitfieldMsg.getBitfield().length != Bitfield
+							.byteLength(this.totalPieces)) {
+						RUBTClient.LOGGER.warning("Invalid bitfield from "
+								+ peer);
+						peer.disconnect();
+						break;
+					}
+					if (peer.isRemoved()) {
+						// Queued before the disconnect; no longer counted
+						break;
+					}
+					if (peer.getBitfield() != null) {
+						this.availability.removeBitfield(peer.getBitfield());
+					}
+					final Bitfield peerBitfield = Bitfield.valueOf(
+							bitfieldMsg.getBitfield(), this.totalPieces);
+					peer.setBitfield(peerBitfield);
+					this.availability.addBitfield(peerBitfield);
 
 					// Inspect bitfield
 					peer.setLocalInterested(this.amInterested(peer));
@@ -443,11 +829,24 @@ public class RUBTClient extends Thread {
 					break;
 				case Message.ID_HAVE:
 					final HaveMessage haveMsg = (HaveMessage) msg;
+					final int havePieceIndex = haveMsg.getPieceIndex();
+					if ((havePieceIndex < 0)
+							|| (havePieceIndex >= this.totalPieces)) {
+						RUBTClient.LOGGER.warning("Invalid piece index from "
+								+ peer);
+						break;
+					}
 
+					if (peer.isRemoved()) {
+						// Queued before the disconnect; no longer counted
+						break;
+					}
 					if (peer.getBitfield() == null) {
 						peer.initializeBitfield(this.totalPieces);
 					}
-					peer.setBitfieldBit(haveMsg.getPieceIndex());
+					if (peer.setBitfieldBit(havePieceIndex)) {
+						this.availability.increment(havePieceIndex);
+					}
 
 					peer.setLocalInterested(this.amInterested(peer));
 					if (!peer.amChoked() && peer.amInterested()) {
@@ -460,45 +859,67 @@ public class RUBTClient extends Thread {
 				case Message.ID_REQUEST:
 					final RequestMessage requestMsg = (RequestMessage) msg;
 
-					// Check that we have the piece
-					if (Utility.isSetBit(this.bitfield,
-							requestMsg.getPieceIndex())) {
-						// Send the block
-						byte[] block = new byte[requestMsg.getBlockLength()];
-						System.arraycopy(Utility.getFileInBytes(this.outFile),
-								requestMsg.getBlockOffset(), block, 0,
-								requestMsg.getBlockLength());
-						final PieceMessage pieceMsg = new PieceMessage(
-								requestMsg.getPieceIndex(),
-								requestMsg.getBlockOffset(), block);
-						peer.sendMessage(pieceMsg);
-					} else {
-						// Peer is misbehaving, choke
-						peer.sendMessage(Message.CHOKE);
+					// Requests from choked peers are discarded
+					if (peer.remoteChoked()) {
+						RUBTClient.LOGGER.info("Ignoring request from choked "
+								+ peer);
+						break;
+					}
+
+					// Check that the block lies within a piece of the file
+					// before looking the piece up
+					if (!this.isValidRequest(requestMsg)) {
+						// Peer is misbehaving
+						RUBTClient.LOGGER.warning("Invalid request from "
+								+ peer + ": " + requestMsg);
+						peer.disconnect();
+						break;
+					}
+					if (!this.bitfield.get(requestMsg.getPieceIndex())) {
+						RUBTClient.LOGGER.info("Ignoring request for a missing piece from "
+								+ peer + ": " + requestMsg);
+						break;
 					}
 
+					// Send the block straight from the file
+					peer.sendBlock(requestMsg.getPieceIndex(), requestMsg
+							.getBlockOffset(), requestMsg.getBlockLength(),
+							this.storage,
+							((long) requestMsg.getPieceIndex() * this.pieceLength)
+									+ requestMsg.getBlockOffset());
+					this.uploaded += requestMsg.getBlockLength();
+
 					break;
 				case Message.ID_PIECE:
 					final PieceMessage pieceMsg = (PieceMessage) msg;
 
-					// Updated downloaded
-					this.downloaded = this.downloaded
-							+ pieceMsg.getBlock().length;
+					// The piece was hashed as its blocks arrived; check it and
+					// write it off the main loop
+					final Piece completed = this.activePieces.get(pieceMsg
+							.getPieceIndex());
+					this.verifier.submit(peer, pieceMsg.getPieceIndex(),
+							pieceMsg.getBlock(), (completed != null) ? completed
+									.getHash() : null);
 
-					// Verify piece
-					if (this.verifyPiece(pieceMsg.getPieceIndex(),
-							pieceMsg.getBlock())) {
-						// Write piece
-						RUBTClient.LOGGER.info("Writing piece [pieceIndex="
-								+ pieceMsg.getPieceIndex() + "] to file");
+					if (!peer.amChoked() && peer.amInterested()) {
+						this.requestPieces(peer);
+					} else {
+						peer.sendMessage(Message.KEEP_ALIVE);
+					}
+					break;
+				case Message.ID_VERIFIED:
+					final VerifiedMessage verifiedMsg = (VerifiedMessage) msg;
+					final int verifiedIndex = verifiedMsg.getPieceIndex();
+					final Piece piece = this.activePieces.get(verifiedIndex);
 
-						this.outFile.seek(pieceMsg.getPieceIndex()
-								* this.pieceLength);
-						this.outFile.write(pieceMsg.getBlock());
-						this.setBitfieldBit(pieceMsg.getPieceIndex());
+					if (verifiedMsg.isVerified()) {
+						// Piece was written by the verifier
+						this.setBitfieldBit(verifiedIndex);
+						this.activePieces.remove(verifiedIndex);
 
 						// Recalculate amount left to download
-						this.left = this.left - pieceMsg.getBlock().length;
+						this.left = this.left
+								- this.getPieceLength(verifiedIndex);
 						// For some reason left can go below 0...
 						if (this.left < 0) {
 							this.left = 0;
@@ -506,22 +927,47 @@ public class RUBTClient extends Thread {
 						RUBTClient.LOGGER.info("Amount left = " + this.left);
 
 						// Notify peers that the piece is complete
-						this.notifyPeers(pieceMsg.getPieceIndex());
+						this.notifyPeers(verifiedIndex);
 					} else {
 						// Drop piece
 						RUBTClient.LOGGER.warning("Dropping piece [pieceIndex="
-								+ pieceMsg.getPieceIndex() + "]");
-						this.resetBitfieldBit(pieceMsg.getPieceIndex());
+								+ verifiedIndex + "]");
+						if (piece != null) {
+							// Download the whole piece again
+							piece.reset();
+						}
 					}
 					RUBTClient.LOGGER.info("Updated my bitfield: "
 							+ this.getBitfieldString());
 
-					if (!peer.amChoked() && peer.amInterested()) {
-						this.chooseAndRequestPiece(peer);
-					} else {
-						peer.sendMessage(Message.KEEP_ALIVE);
+					// Peers that were held off while the verifier was busy
+					// may start new pieces now
+					for (final Peer other : this.getPeers()) {
+						if (!other.amChoked() && other.amInterested()
+								&& other.needsPiece()) {
+							this.requestPieces(other);
+						}
 					}
 					break;
+				case Message.ID_RECEIVED:
+					this.cancelDuplicates(peer, (ReceivedMessage) msg);
+					break;
+				case Message.ID_RECHOKE:
+					this.choker.rechoke(this.getPeers(), this.left == 0);
+					break;
+				case Message.ID_DISCONNECT:
+					if (peer.isRemoved()) {
+						break;
+					}
+					peer.setRemoved();
+					this.peers.remove(peer);
+					this.choker.remove(peer);
+					if (peer.getBitfield() != null) {
+						this.availability.removeBitfield(peer.getBitfield());
+					}
+					// Refill the freed slot
+					this.connections.disconnected(peer);
+					break;
 				default:
 					RUBTClient.LOGGER
 							.warning("Could not process message of unknown type: "
@@ -543,8 +989,8 @@ public class RUBTClient extends Thread {
 	}
 
 	/**
-	 * Checks which new peers are not already connected (by peer ID) and tries
-	 * to connect to those.
+	 * Adds new peers from a tracker to the connection manager's candidates,
+	 * which dials them as connection slots free up.
 	 * 
 	 * @param newPeers
 	 *            the list of potentially new peers from the tracker
@@ -553,22 +999,102 @@ public class RUBTClient extends Thread {
 
 		if (newPeers == null) {
 			RUBTClient.LOGGER.log(Level.WARNING, "No new peers to start.");
-		} else {
-			for (final Peer newPeer : newPeers) {
-				// Filter peers by IP address
-				if ((newPeer != null)
-						&& (newPeer.getIp().equals("128.6.171.130") || newPeer
-								.getIp().equals("128.6.171.131"))
-						&& !this.peers.contains(newPeer)) {
-					this.peers.add(newPeer);
-					RUBTClient.LOGGER
-							.info("Connecting to new peer: " + newPeer);
-					newPeer.setClient(this);
-					newPeer.setTasks(this.tasks);
-					newPeer.start();
-				}
+			return;
+		}
+		final List<Peer> candidates = new ArrayList<Peer>(newPeers.size());
+		for (final Peer newPeer : newPeers) {
+			// Filter peers by IP address
+			if ((newPeer != null)
+					&& (newPeer.getIp().equals("128.6.171.130") || newPeer
+							.getIp().equals("128.6.171.131"))) {
+				candidates.add(newPeer);
+			}
+		}
+		this.connections.addCandidates(candidates);
+	}
+
+	/**
+	 * Connects to a peer chosen by the connection manager, unless the same
+	 * peer is already connected.
+	 * 
+	 * @param newPeer
+	 *            the peer to connect to
+	 * @return {@code true} if the peer is being connected to
+	 */
+	boolean connectPeer(final Peer newPeer) {
+		// Tracker tiers and the main loop may add peers at the same time
+		synchronized (this.peers) {
+			if (!this.keepRunning || this.peers.contains(newPeer)) {
+				return false;
+			}
+			this.peers.add(newPeer);
+		}
+		RUBTClient.LOGGER.info("Connecting to new peer: " + newPeer);
+		newPeer.setClient(this);
+		newPeer.setTasks(this.tasks);
+		newPeer.setLimiter(this.limiter);
+		newPeer.setRequestWindow(this.requestWindow);
+		this.engine.connect(newPeer);
+		return true;
+	}
+
+	/**
+	 * Dials more candidates once a peer that the client connected to has
+	 * finished its handshake, since it no longer counts as half-open. Called
+	 * from the peer's event loop.
+	 * 
+	 * @param peer
+	 *            the peer that completed its handshake
+	 */
+	void handshakeCompleted(final Peer peer) {
+		this.connections.fill();
+	}
+
+	/**
+	 * @return the number of connected peers, including those still
+	 *         connecting
+	 */
+	int getPeerCount() {
+		synchronized (this.peers) {
+			return this.peers.size();
+		}
+	}
+
+	/**
+	 * Gives a copy of the list of connected peers that can be iterated while
+	 * peers connect and disconnect.
+	 * 
+	 * @return the connected peers
+	 */
+	private List<Peer> getPeers() {
+		synchronized (this.peers) {
+			return new ArrayList<Peer>(this.peers);
+		}
+	}
+
+	/**
+	 * Accepts a peer that connected to the client and completed its handshake,
+	 * unless the same peer is already connected.
+	 * 
+	 * @param peer
+	 *            the incoming peer
+	 */
+	void addIncomingPeer(final Peer peer) {
+		synchronized (this.peers) {
+			if (!this.keepRunning || this.peers.contains(peer)) {
+				RUBTClient.LOGGER.info("Rejecting duplicate incoming peer: "
+						+ peer);
+				peer.disconnect();
+				return;
 			}
+			this.peers.add(peer);
 		}
+		RUBTClient.LOGGER.info("Accepted incoming peer: " + peer);
+		peer.setClient(this);
+		peer.setTasks(this.tasks);
+		peer.setLimiter(this.limiter);
+		peer.setRequestWindow(this.requestWindow);
+		this.engine.connect(peer);
 	}
 
 	// /**
@@ -609,94 +1135,176 @@ public class RUBTClient extends Thread {
 	// }
 	
 	
-	private class Popularity implements Comparable<Popularity> {
-		private int pieceIndex;
-		private int popularity;
-		/**
-		 * @return the pieceIndex
-		 */
-		public int getPieceIndex() {
-			return pieceIndex;
-		}
-		/**
-		 * @return the popularity
-		 */
-		public int getPopularity() {
-			return popularity;
-		}
-		/**
-		 * Increments popularity.
-		 * @param popularity the popularity to set
-		 */
-		public void upPopularity() {
-			this.popularity += 1;
-		}
-		public Popularity(int pieceIndex) {
-			this.pieceIndex = pieceIndex;
-			this.popularity = 0;
-		}
-		
-		@Override
-		public int compareTo(Popularity o) {
-			return this.popularity - o.popularity;
-		}
-	}
-	
-	
 	/**
-	 * Determines which piece to request from the remote peer, and tells the
-	 * peer to "download" it by selecting the rarest piece.
+	 * Keeps the peer's request window full: first lets the peer request more
+	 * blocks of the pieces it already has, then hands it new pieces for as long
+	 * as it is running low on blocks to request.
 	 * 
 	 * @param peer
 	 * @throws IOException
 	 */
-	private void chooseAndRequestPiece(Peer peer) throws IOException {
-		ArrayList<Popularity> piecePopularity = new ArrayList<Popularity>();
-		for (int i = 0; i < this.totalPieces; i++) {
-			piecePopularity.add(new Popularity(i));
+	private void requestPieces(final Peer peer) throws IOException {
+		peer.requestBlocks();
+		while (peer.needsPiece() && this.chooseAndRequestPiece(peer)) {
+			// Keep adding pieces
 		}
-		
-		// Iterate over each peer
-		for (Peer p : this.peers) {
-			byte[] peerBitfield = p.getBitfield();
-			if (p.getBitfield() == null) {
+		if (this.isEndgame()) {
+			// Fill the rest of the window with blocks requested elsewhere
+			for (final Piece piece : this.activePieces.values()) {
+				if (peer.hasPiece(piece.getIndex())
+						&& !peer.requestDuplicates(piece)) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines whether the download is in endgame mode, i.e. whether every
+	 * missing piece is being downloaded and all of their blocks have been
+	 * requested. From then on, blocks still missing are requested from every
+	 * unchoked peer that has them, so that the last pieces don't wait on the
+	 * slowest peer.
+	 * 
+	 * @return {@code true} if in endgame mode
+	 */
+	private boolean isEndgame() {
+		if (this.activePieces.isEmpty()
+				|| (this.activePieces.size() != (this.totalPieces - this.bitfield.cardinality()))) {
+			return false;
+		}
+		for (final Piece piece : this.activePieces.values()) {
+			if (piece.getUnrequestedBlocks() > 0) {
+				return false;
+			}
+		}
+		for (final Piece piece : this.activePieces.values()) {
+			if (!piece.isEndgame()) {
+				RUBTClient.LOGGER.info("Endgame mode for " + piece);
+				piece.setEndgame();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels the requests for a block that arrived in endgame mode with every
+	 * other peer, and has those peers request other blocks instead. Once the
+	 * piece is complete, the other peers stop building it.
+	 * 
+	 * @param sender
+	 *            the peer that the block arrived from
+	 * @param receivedMsg
+	 *            the block that arrived
+	 * @throws IOException
+	 */
+	private void cancelDuplicates(final Peer sender,
+			final ReceivedMessage receivedMsg) throws IOException {
+		final Piece piece = this.activePieces.get(receivedMsg.getPieceIndex());
+		for (final Peer other : this.getPeers()) {
+			if (other == sender) {
 				continue;
 			}
-			// Increment piece popularity if the peer has that piece
-			for (int i = 0; i < peerBitfield.length; i++) {
-				if (Utility.isSetBit(peerBitfield, i)) {
-					// Increment the counter for this piece
-					piecePopularity.get(i).upPopularity();
-				}
+			boolean cancelled = other.cancelRequest(
+					receivedMsg.getPieceIndex(), receivedMsg.getBlockOffset(),
+					receivedMsg.getBlockLength());
+			if ((piece != null) && piece.isComplete()
+					&& other.releasePiece(piece)) {
+				cancelled = true;
 			}
+			if (cancelled && !other.amChoked() && other.amInterested()) {
+				this.requestPieces(other);
+			}
+		}
+	}
 
+	/**
+	 * Determines which piece to request from the remote peer, and tells the
+	 * peer to "download" it. Partially downloaded pieces that no peer is
+	 * working on are finished first, otherwise the rarest piece is selected.
+	 * 
+	 * @param peer
+	 * @return {@code true} if a piece was given to the peer
+	 * @throws IOException
+	 */
+	private boolean chooseAndRequestPiece(Peer peer) throws IOException {
+		// Resume abandoned pieces first
+		for (final Piece piece : this.activePieces.values()) {
+			if ((piece.getHolders() == 0)
+					&& (piece.getUnrequestedBlocks() > 0)
+					&& peer.hasPiece(piece.getIndex())) {
+				peer.requestPiece(piece);
+				return true;
+			}
 		}
-		
-		Collections.sort(piecePopularity);
 
-		int pieceIndex = 0;
-		for (Popularity p : piecePopularity) {
-			if (Utility.isSetBit(peer.getBitfield(), p.getPieceIndex()) && !Utility.isSetBit(this.bitfield, p.getPieceIndex())) {
-				pieceIndex = p.getPieceIndex();
-				this.setBitfieldBit(pieceIndex);
+		// Hold off on new pieces while the verifier catches up, so that
+		// completed pieces don't pile up in memory
+		if (this.verifier.isBusy()) {
+			return false;
+		}
 
-				int requestedPieceLength = 0;
-				// Check if requesting last piece
-				if (pieceIndex == (this.totalPieces - 1)) {
-					// Last piece is irregularly-sized
-					requestedPieceLength = this.fileLength % this.pieceLength;
-				} else {
-					requestedPieceLength = this.pieceLength;
-				}
+		// Otherwise start on the rarest piece
+		final int pieceIndex = this.availability.rarestWanted(peer
+				.getBitfield());
+		if (pieceIndex < 0) {
+			return false;
+		}
+		this.availability.setWanted(pieceIndex, false);
+		final Piece piece = new Piece(pieceIndex,
+				this.getPieceLength(pieceIndex));
+		this.activePieces.put(pieceIndex, piece);
+		peer.requestPiece(piece);
+		return true;
+	}
 
-				peer.requestPiece(pieceIndex, requestedPieceLength);
-				break;
-			}
+	/**
+	 * The largest block that a peer may request from the client.
+	 */
+	private static final int MAX_REQUEST_LENGTH = 131072;
+
+	/**
+	 * Checks that a requested block lies within its piece and isn't larger
+	 * than the client is willing to send.
+	 * 
+	 * @param requestMsg
+	 *            the request from a peer
+	 * @return {@code true} if the request can be served
+	 */
+	private boolean isValidRequest(final RequestMessage requestMsg) {
+		final int pieceIndex = requestMsg.getPieceIndex();
+		if ((pieceIndex < 0) || (pieceIndex >= this.totalPieces)) {
+			return false;
 		}
-		
-		
+		return (requestMsg.getBlockOffset() >= 0)
+				&& (requestMsg.getBlockLength() > 0)
+				&& (requestMsg.getBlockLength() <= RUBTClient.MAX_REQUEST_LENGTH)
+				&& ((requestMsg.getBlockOffset() + requestMsg.getBlockLength()) <= this
+						.getPieceLength(pieceIndex));
 	}
 
+	/**
+	 * Gives the length of a piece; the last piece is irregularly-sized if the
+	 * file length isn't a multiple of the piece length.
+	 * 
+	 * @param pieceIndex
+	 *            the zero-based index of the piece
+	 * @return the length of the piece
+	 */
+	private int getPieceLength(final int pieceIndex) {
+		if ((pieceIndex == (this.totalPieces - 1))
+				&& ((this.fileLength % this.pieceLength) != 0)) {
+			return (int) (this.fileLength % this.pieceLength);
+		}
+		return this.pieceLength;
+	}
+
+	/**
+	 * The time in milliseconds that shutdown waits for queued pieces to be
+	 * written.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10000;
+
 	/**
 	 * Gracefully shuts down the client; make sure all data is written to disk
 	 * and all threads are done.
@@ -705,25 +1313,60 @@ public class RUBTClient extends Thread {
 		RUBTClient.LOGGER.info("Shutting down client.");
 		this.keepRunning = false;
 
-		// Cancel any upcoming tracker announces
+		// Stop a recheck that is still running
+		final PieceRecheck recheck = this.recheck;
+		if (recheck != null) {
+			recheck.cancel();
+		}
+
+		// Cancel any upcoming tracker announces and resume saves
 		this.trackerTimer.cancel();
+		// Stop accepting new peers
+		if (this.acceptor != null) {
+			this.acceptor.shutdown();
+		}
 		// Disconnect all peers
 		if (!this.peers.isEmpty()) {
 			for (final Peer peer : this.peers) {
 				peer.disconnect();
 			}
 		}
+		if (this.engine != null) {
+			this.engine.shutdown();
+		}
+		if (this.verifier != null) {
+			// Let queued pieces reach the file before it is described
+			this.verifier.shutdown();
+			this.verifier.awaitTermination(RUBTClient.SHUTDOWN_TIMEOUT);
+		}
+		if ((recheck == null) && (this.bitfield != null)) {
+			this.saveResume();
+		}
+		if (this.storage != null) {
+			try {
+				this.storage.close();
+			} catch (final IOException ioe) {
+				RUBTClient.LOGGER.log(Level.WARNING,
+						"Unable to close output file", ioe);
+			}
+		}
 
+		// Let the trackers know, but don't let a hung tracker hold up exit
 		try {
-			this.tracker.announce(this.getDownloaded(), this.getUploaded(),
-					this.getLeft(), "stopped");
-		} catch (final IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (final BencodingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			this.announcer.announce(this.getDownloaded(), this.getUploaded(),
+					this.getLeft(), "stopped").get(
+					RUBTClient.STOPPED_ANNOUNCE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (final TimeoutException te) {
+			RUBTClient.LOGGER.warning("No tracker answered the stopped announce");
+		} catch (final ExecutionException ee) {
+			RUBTClient.LOGGER.log(Level.WARNING, "Stopped announce failed",
+					ee.getCause());
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (final RejectedExecutionException ree) {
+			// Already shut down
 		}
+		this.trackerExecutor.shutdown();
 
 		return;
 	}
@@ -765,10 +1408,10 @@ public class RUBTClient extends Thread {
 			return false;
 		}
 
-		// Inspect bitfield
-		for (int pieceIndex = 0; pieceIndex < this.totalPieces; pieceIndex++) {
-			if (!Utility.isSetBit(this.bitfield, pieceIndex)
-					&& Utility.isSetBit(peer.getBitfield(), pieceIndex)) {
+		// Inspect the pieces that the client doesn't have
+		for (int pieceIndex = this.bitfield.nextClearBit(0); pieceIndex >= 0; pieceIndex = this.bitfield
+				.nextClearBit(pieceIndex + 1)) {
+			if (peer.hasPiece(pieceIndex)) {
 				RUBTClient.LOGGER.info("Still interested in pieces from "
 						+ peer);
 				return true;
@@ -778,46 +1421,6 @@ public class RUBTClient extends Thread {
 		return false;
 	}
 
-	/**
-	 * Verify a piece by checking that its corresponding SHA-1 hash of the data
-	 * matches that in the torrent metadata file.
-	 * 
-	 * @author Julian Modesto
-	 * @param pieceIndex
-	 *            the zero-based index of the piece
-	 * @param block
-	 *            the block of data
-	 * @return true if the data is verifiably part of the file
-	 * @throws IOException
-	 * @throws NoSuchAlgorithmException
-	 * 
-	 */
-	private boolean verifyPiece(final int pieceIndex, final byte[] block)
-			throws IOException {
-
-		final byte[] piece = new byte[block.length];
-		System.arraycopy(block, 0, piece, 0, block.length);
-
-		byte[] hash = null;
-
-		MessageDigest sha;
-		try {
-			sha = MessageDigest.getInstance("SHA-1");
-			hash = sha.digest(piece);
-		} catch (NoSuchAlgorithmException nsae) {
-			// Won't happen!
-		}
-
-		if (Arrays.equals(this.tInfo.piece_hashes[pieceIndex].array(), hash)) {
-			RUBTClient.LOGGER.info("Piece [pieceIndex=" + pieceIndex
-					+ "] verified.");
-			return true;
-		}
-		RUBTClient.LOGGER.warning("Piece [pieceIndex=" + pieceIndex
-				+ "] doesn't match.");
-		return false;
-	}
-
 	/**
 	 * Sends a Have message to peers for the piece that the client has
 	 * completed.
@@ -841,32 +1444,151 @@ public class RUBTClient extends Thread {
 	}
 
 	/**
-	 * Updates the bitfield according to the existing output file.
+	 * Gives the files that the torrent is saved as. The files of a multi-file
+	 * torrent are placed under the output directory; path components that
+	 * would lead outside of it are dropped.
+	 * 
+	 * @param tInfo
+	 *            the torrent metainfo
+	 * @param outFileName
+	 *            the output file or directory
+	 * @return the files in torrent order
+	 */
+	private static File[] getOutputFiles(final TorrentInfo tInfo,
+			final String outFileName) {
+		if (tInfo.file_paths == null) {
+			return new File[] { new File(outFileName) };
+		}
+		final File[] files = new File[tInfo.file_paths.length];
+		for (int i = 0; i < files.length; i++) {
+			File file = new File(outFileName);
+			for (final String component : tInfo.file_paths[i]) {
+				if (component.isEmpty() || component.equals(".")
+						|| component.equals("..")
+						|| (component.indexOf('/') >= 0)
+						|| (component.indexOf(File.separatorChar) >= 0)) {
+					RUBTClient.LOGGER.warning("Skipping path component \""
+							+ component + "\" of file " + i);
+					continue;
+				}
+				file = new File(file, component);
+			}
+			files[i] = file;
+		}
+		return files;
+	}
+
+	/**
+	 * Opens the storage for the output files. A single output file is mapped
+	 * unless mapping is turned off or fails, in which case it is accessed
+	 * through its channel.
+	 * 
+	 * @return the storage, with every file allocated
+	 * @throws IOException
+	 */
+	private Storage openStorage() throws IOException {
+		if (this.tInfo.file_paths != null) {
+			return new MultiFileStorage(this.outFiles, this.tInfo.file_lengths);
+		}
+
+		final RandomAccessFile outFile = new RandomAccessFile(this.outFiles[0],
+				"rw");
+		// Allocate the total file
+		if (outFile.length() != this.fileLength) {
+			outFile.setLength(this.fileLength);
+		}
+		if (this.mappedStorage) {
+			try {
+				return new MappedStorage(outFile.getChannel(), this.fileLength);
+			} catch (final IOException ioe) {
+				RUBTClient.LOGGER.log(Level.WARNING,
+						"Unable to map output file, using file channel", ioe);
+			}
+		}
+		return new FileStorage(outFile.getChannel());
+	}
+
+	/**
+	 * Updates the bitfield according to the existing output file, which is
+	 * rechecked in parallel.
 	 * 
 	 * @throws IOException
 	 */
 	private void setBitfield() throws IOException {
-		final int bytes = (int) Math.ceil(this.totalPieces / 8.0);
-		this.bitfield = new byte[bytes];
+		this.bitfield = new Bitfield(this.totalPieces);
+
+		this.recheck = new PieceRecheck(this.verifier,
+				this.storage, this.totalPieces, this.pieceLength,
+				this.fileLength);
+		final boolean[] valid = this.recheck.run();
+		this.recheck = null;
 
 		for (int pieceIndex = 0; pieceIndex < this.totalPieces; pieceIndex++) {
-			byte[] temp;
-			if (pieceIndex == this.totalPieces - 1) {
-				// Last piece
-				temp = new byte[this.fileLength % this.pieceLength];
-			} else {
-				temp = new byte[this.pieceLength];
-			}
-			this.outFile.read(temp);
-			if (this.verifyPiece(pieceIndex, temp)) {
+			if (valid[pieceIndex]) {
 				this.setBitfieldBit(pieceIndex);
-				this.left = this.left - temp.length;
-			} else {
-				this.resetBitfieldBit(pieceIndex);
+				this.left = this.left - this.getPieceLength(pieceIndex);
 			}
 		}
 	}
 
+	/**
+	 * Updates the bitfield and partially downloaded pieces from the fast-resume
+	 * file, if it still matches the output file. Partial pieces that were
+	 * already complete are queued for verification again.
+	 * 
+	 * @return {@code true} if the resume file was used, {@code false} if the
+	 *         output file has to be rechecked
+	 */
+	private boolean loadResume() {
+		final FastResume.State state = this.resume.load();
+		if (state == null) {
+			return false;
+		}
+
+		this.bitfield = new Bitfield(this.totalPieces);
+		final Bitfield saved = Bitfield.valueOf(state.getBitfield(),
+				this.totalPieces);
+		for (int pieceIndex = saved.nextSetBit(0); pieceIndex >= 0; pieceIndex = saved
+				.nextSetBit(pieceIndex + 1)) {
+			this.setBitfieldBit(pieceIndex);
+			this.left = this.left - this.getPieceLength(pieceIndex);
+		}
+
+		for (final Piece piece : state.getPartialPieces()) {
+			final int pieceIndex = piece.getIndex();
+			if ((pieceIndex < 0) || (pieceIndex >= this.totalPieces)
+					|| this.bitfield.get(pieceIndex)
+					|| (piece.getLength() != this.getPieceLength(pieceIndex))) {
+				continue;
+			}
+			this.availability.setWanted(pieceIndex, false);
+			this.activePieces.put(pieceIndex, piece);
+			if (piece.isComplete()) {
+				this.verifier.submit(null, pieceIndex, piece.getData(),
+						piece.getHash());
+			}
+		}
+		RUBTClient.LOGGER.info("Resumed with " + this.activePieces.size()
+				+ " partial pieces");
+		return true;
+	}
+
+	/**
+	 * Saves the bitfield and partially downloaded pieces to the fast-resume
+	 * file. The output file is flushed first so that the resume file can be
+	 * trusted as long as the output file isn't modified again.
+	 */
+	void saveResume() {
+		try {
+			this.storage.force();
+			this.resume.save(this.bitfield.toByteArray(),
+					this.activePieces.values());
+		} catch (final IOException ioe) {
+			RUBTClient.LOGGER.log(Level.WARNING,
+					"Unable to save resume file", ioe);
+		}
+	}
+
 	/**
 	 * Sets a specific bit in the bitfield to 1.
 	 * 
@@ -874,9 +1596,8 @@ public class RUBTClient extends Thread {
 	 *            the bit to set
 	 */
 	private void setBitfieldBit(final int bit) {
-		byte[] tempBitfield = this.getBitfield();
-		tempBitfield = Utility.setBit(tempBitfield, bit);
-		this.setBitfield(tempBitfield);
+		this.bitfield.set(bit);
+		this.availability.setWanted(bit, false);
 	}
 
 	/**
@@ -886,19 +1607,7 @@ public class RUBTClient extends Thread {
 	 *            the bit to reset
 	 */
 	private void resetBitfieldBit(final int bit) {
-		byte[] tempBitfield = this.getBitfield();
-		tempBitfield = Utility.resetBit(tempBitfield, bit);
-		this.setBitfield(tempBitfield);
-	}
-
-	/**
-	 * Sets the byte array as the updated client bitfield.
-	 * 
-	 * @param bitfield
-	 *            the bitfield to set
-	 */
-	private void setBitfield(final byte[] bitfield) {
-		this.bitfield = bitfield;
+		this.bitfield.clear(bit);
 	}
 
 	/**
@@ -906,7 +1615,7 @@ public class RUBTClient extends Thread {
 	 * 
 	 * @return the bitfield
 	 */
-	byte[] getBitfield() {
+	Bitfield getBitfield() {
 		return this.bitfield;
 	}
 
@@ -919,10 +1628,7 @@ public class RUBTClient extends Thread {
 		final StringBuilder builder = new StringBuilder();
 		if (this.bitfield != null) {
 			builder.append("bitfield=");
-			for (final byte b : this.bitfield) {
-				// Add 0x100 then skip char(0) to left-pad bits with zeros
-				builder.append(Integer.toBinaryString(0x100 + b).substring(1));
-			}
+			builder.append(this.bitfield);
 		}
 		return builder.toString();
 	}
@@ -0,0 +1,109 @@
+package edu.rutgers.cs.cs352.bt;
+
+/**
+ * Measures a transfer rate over a rolling window. Bytes are added to a bucket
+ * for the current second, and the rate is the total of the buckets that are
+ * still within the window divided by its length, so a peer's rate follows its
+ * recent behaviour rather than its whole history.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class RateMeter {
+
+	/**
+	 * The length of the window in seconds.
+	 */
+	static final int WINDOW_SECONDS = 20;
+
+	/**
+	 * The bytes transferred in each second of the window, indexed by the
+	 * second modulo the window length.
+	 */
+	private final long[] buckets = new long[RateMeter.WINDOW_SECONDS];
+
+	/**
+	 * The second that the meter was created in.
+	 */
+	private final long startSecond;
+
+	/**
+	 * The latest second that bytes were added in or the rate was read in.
+	 */
+	private long lastSecond;
+
+	/**
+	 * The total number of bytes ever added.
+	 */
+	private long total = 0;
+
+	/**
+	 * Creates a new meter with a rate of zero.
+	 */
+	RateMeter() {
+		this.startSecond = RateMeter.now();
+		this.lastSecond = this.startSecond;
+	}
+
+	/**
+	 * @return the current time in seconds
+	 */
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * Clears the buckets of the seconds that passed since the last update.
+	 * 
+	 * @param second
+	 *            the current second
+	 */
+	private void advance(final long second) {
+		final long elapsed = Math.min(second - this.lastSecond,
+				RateMeter.WINDOW_SECONDS);
+		for (long i = 1; i <= elapsed; i++) {
+			this.buckets[(int) ((this.lastSecond + i) % RateMeter.WINDOW_SECONDS)] = 0;
+		}
+		if (second > this.lastSecond) {
+			this.lastSecond = second;
+		}
+	}
+
+	/**
+	 * Records transferred bytes.
+	 * 
+	 * @param bytes
+	 *            the number of bytes
+	 */
+	synchronized void add(final long bytes) {
+		final long second = RateMeter.now();
+		this.advance(second);
+		this.buckets[(int) (this.lastSecond % RateMeter.WINDOW_SECONDS)] += bytes;
+		this.total += bytes;
+	}
+
+	/**
+	 * Gives the rate over the window, or over the lifetime of the meter if it
+	 * is younger than the window.
+	 * 
+	 * @return the rate in bytes per second
+	 */
+	synchronized long getRate() {
+		final long second = RateMeter.now();
+		this.advance(second);
+		long sum = 0;
+		for (final long bucket : this.buckets) {
+			sum += bucket;
+		}
+		final long seconds = Math.min(RateMeter.WINDOW_SECONDS, second
+				- this.startSecond + 1);
+		return sum / seconds;
+	}
+
+	/**
+	 * @return the total number of bytes ever added
+	 */
+	synchronized long getTotal() {
+		return this.total;
+	}
+}
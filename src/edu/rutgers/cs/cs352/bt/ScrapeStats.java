@@ -0,0 +1,103 @@
+package edu.rutgers.cs.cs352.bt;
+
+/**
+ * The size of a torrent's swarm as reported by a tracker, either in a scrape
+ * or in an announce response.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class ScrapeStats {
+
+	/**
+	 * The number of peers with the complete file.
+	 */
+	private final int seeders;
+
+	/**
+	 * The number of peers still downloading.
+	 */
+	private final int leechers;
+
+	/**
+	 * The number of times the torrent has been downloaded, or -1 if unknown.
+	 */
+	private final int downloaded;
+
+	/**
+	 * The time in milliseconds that the tracker reported the statistics.
+	 */
+	private final long timestamp;
+
+	/**
+	 * Creates new swarm statistics, reported now.
+	 * 
+	 * @param seeders
+	 *            the number of peers with the complete file
+	 * @param leechers
+	 *            the number of peers still downloading
+	 * @param downloaded
+	 *            the number of completed downloads, or -1 if unknown
+	 */
+	ScrapeStats(final int seeders, final int leechers, final int downloaded) {
+		this.seeders = seeders;
+		this.leechers = leechers;
+		this.downloaded = downloaded;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the number of peers with the complete file
+	 */
+	int getSeeders() {
+		return this.seeders;
+	}
+
+	/**
+	 * @return the number of peers still downloading
+	 */
+	int getLeechers() {
+		return this.leechers;
+	}
+
+	/**
+	 * @return the number of completed downloads, or -1 if unknown
+	 */
+	int getDownloaded() {
+		return this.downloaded;
+	}
+
+	/**
+	 * @return the total number of peers in the swarm
+	 */
+	int getSwarmSize() {
+		return this.seeders + this.leechers;
+	}
+
+	/**
+	 * @param ttl
+	 *            the time in milliseconds that statistics stay valid
+	 * @return {@code true} if the statistics are older than the TTL
+	 */
+	boolean isExpired(final long ttl) {
+		return (System.currentTimeMillis() - this.timestamp) > ttl;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("ScrapeStats [seeders=");
+		builder.append(this.seeders);
+		builder.append(", leechers=");
+		builder.append(this.leechers);
+		builder.append(", downloaded=");
+		builder.append(this.downloaded);
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,94 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The output file as seen by the client: pieces are written to it once
+ * verified, read back when rechecking, and sent from it to peers. Every
+ * operation is positional, so a storage may be used from several threads at
+ * once.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+interface Storage {
+
+	/**
+	 * @return the length of the stored file
+	 */
+	long length();
+
+	/**
+	 * Reads from the file until the buffer is full.
+	 * 
+	 * @param dst
+	 *            the buffer to read into
+	 * @param position
+	 *            the file position to read from
+	 * @throws IOException
+	 *             if the read fails or the file ends first
+	 */
+	void read(ByteBuffer dst, long position) throws IOException;
+
+	/**
+	 * Writes all of the bytes remaining in the buffer to the file.
+	 * 
+	 * @param src
+	 *            the buffer to write, which is consumed
+	 * @param position
+	 *            the file position to write to
+	 * @throws IOException
+	 *             if the write fails
+	 */
+	void write(ByteBuffer src, long position) throws IOException;
+
+	/**
+	 * Writes bytes of the file to a channel without copying them through a
+	 * heap array. Writes to a non-blocking channel may be partial.
+	 * 
+	 * @param position
+	 *            the file position to start from
+	 * @param count
+	 *            the maximum number of bytes to write
+	 * @param target
+	 *            the channel to write to
+	 * @return the number of bytes written, possibly zero
+	 * @throws IOException
+	 *             if the write fails
+	 */
+	long transferTo(long position, long count, WritableByteChannel target)
+			throws IOException;
+
+	/**
+	 * Gives a view of bytes of the file that can be written to a channel
+	 * together with other buffers in one gathering write.
+	 * 
+	 * @param position
+	 *            the file position of the first byte
+	 * @param count
+	 *            the number of bytes
+	 * @return a view of exactly {@code count} bytes, or {@code null} if the
+	 *         storage has no such view and
+	 *         {@link #transferTo(long, long, WritableByteChannel)} has to be
+	 *         used instead
+	 * @throws IOException
+	 *             if the range is outside the file
+	 */
+	ByteBuffer view(long position, int count) throws IOException;
+
+	/**
+	 * Forces every write to the underlying device.
+	 * 
+	 * @throws IOException
+	 */
+	void force() throws IOException;
+
+	/**
+	 * Closes the file.
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,163 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits a transfer rate. Tokens are bytes; they are
+ * added at the configured rate up to a burst of one second's worth, and each
+ * read or write takes as many as it is about to transfer. The bucket is
+ * shared by the event loop threads, so tokens are taken and refilled with
+ * compare-and-set rather than under a lock.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class TokenBucket {
+
+	/**
+	 * The shortest time in nanoseconds between refills, so that busy event
+	 * loops don't contend on every read and write.
+	 */
+	private static final long REFILL_INTERVAL = 1000000L;
+
+	/**
+	 * The longest time in nanoseconds that is credited in a single refill,
+	 * which keeps the arithmetic from overflowing after an idle period.
+	 */
+	private static final long MAX_REFILL_NANOS = 1000000000L;
+
+	/**
+	 * The rate in bytes per second, or 0 for no limit.
+	 */
+	private volatile long rate;
+
+	/**
+	 * The bytes that may be transferred right now.
+	 */
+	private final AtomicLong tokens = new AtomicLong();
+
+	/**
+	 * The time in nanoseconds that tokens were last added.
+	 */
+	private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Creates a new bucket without a limit.
+	 */
+	TokenBucket() {
+		this(0);
+	}
+
+	/**
+	 * Creates a new bucket, initially full.
+	 * 
+	 * @param rate
+	 *            the rate in bytes per second, or 0 for no limit
+	 */
+	TokenBucket(final long rate) {
+		this.setRate(rate);
+		this.tokens.set(this.rate);
+	}
+
+	/**
+	 * Changes the rate. May be called at any time from any thread.
+	 * 
+	 * @param rate
+	 *            the rate in bytes per second, or 0 for no limit
+	 */
+	void setRate(final long rate) {
+		final long newRate = Math.max(0, rate);
+		this.rate = newRate;
+		// Never carry more than a second's worth over from the old rate
+		long current;
+		do {
+			current = this.tokens.get();
+			if (current <= newRate) {
+				break;
+			}
+		} while (!this.tokens.compareAndSet(current, newRate));
+	}
+
+	/**
+	 * @return the rate in bytes per second, or 0 for no limit
+	 */
+	long getRate() {
+		return this.rate;
+	}
+
+	/**
+	 * @return {@code true} if this bucket limits the rate
+	 */
+	boolean isLimited() {
+		return this.rate > 0;
+	}
+
+	/**
+	 * Adds the tokens earned since the last refill. Only the thread that
+	 * advances the refill time adds them, so they are never counted twice.
+	 * 
+	 * @param rate
+	 *            the current rate
+	 */
+	private void refill(final long rate) {
+		final long now = System.nanoTime();
+		final long last = this.lastRefill.get();
+		final long elapsed = now - last;
+		if ((elapsed < TokenBucket.REFILL_INTERVAL)
+				|| !this.lastRefill.compareAndSet(last, now)) {
+			return;
+		}
+		final long micros = Math.min(elapsed, TokenBucket.MAX_REFILL_NANOS) / 1000;
+		final long earned = (rate * micros) / 1000000L;
+		long current;
+		long updated;
+		do {
+			current = this.tokens.get();
+			updated = Math.min(rate, current + earned);
+		} while (!this.tokens.compareAndSet(current, updated));
+	}
+
+	/**
+	 * Takes up to the wanted number of tokens.
+	 * 
+	 * @param wanted
+	 *            the number of bytes about to be transferred
+	 * @return the number of bytes that may be transferred, possibly 0
+	 */
+	int take(final int wanted) {
+		final long rate = this.rate;
+		if (rate <= 0) {
+			return wanted;
+		}
+		this.refill(rate);
+		long current;
+		int granted;
+		do {
+			current = this.tokens.get();
+			if (current <= 0) {
+				return 0;
+			}
+			granted = (int) Math.min(wanted, current);
+		} while (!this.tokens.compareAndSet(current, current - granted));
+		return granted;
+	}
+
+	/**
+	 * Returns tokens that were taken but not used, e.g. after a short read.
+	 * 
+	 * @param unused
+	 *            the number of bytes that weren't transferred
+	 */
+	void give(final int unused) {
+		final long rate = this.rate;
+		if ((rate <= 0) || (unused <= 0)) {
+			return;
+		}
+		long current;
+		long updated;
+		do {
+			current = this.tokens.get();
+			updated = Math.min(rate, current + unused);
+		} while (!this.tokens.compareAndSet(current, updated));
+	}
+}
@@ -25,6 +25,8 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import edu.rutgers.cs.cs352.bt.exceptions.BencodingException;
@@ -32,8 +34,8 @@ import edu.rutgers.cs.cs352.bt.util.Bencoder2;
 
 /**
  * This is a data structure class that extracts basic information from a bencoded torrent metainfo
- * file and stores it in public fields.&nbsp; Note that this class only works for torrent metainfo files
- * for a single-file torrent.
+ * file and stores it in public fields.&nbsp; Both single-file and multi-file torrents are supported;
+ * for a multi-file torrent, the file name is the name of the directory holding the files.
  * 
  * @author Robert Moore II
  *
@@ -64,6 +66,18 @@ public class TorrentInfo
     public final static ByteBuffer KEY_NAME = ByteBuffer.wrap(new byte[]
     { 'n', 'a', 'm', 'e' });
 
+    /**
+     * Key used to retrieve the list of files of a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_FILES = ByteBuffer.wrap(new byte[]
+    { 'f', 'i', 'l', 'e', 's' });
+
+    /**
+     * Key used to retrieve the path of a file in a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_PATH = ByteBuffer.wrap(new byte[]
+    { 'p', 'a', 't', 'h' });
+
     /**
      * Key used to retrieve the default piece length.
      */
@@ -75,6 +89,11 @@ public class TorrentInfo
 	 */
 	public static final ByteBuffer KEY_ANNOUNCE = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e'});
 	
+	/**
+	 * ByteBuffer to retrieve the tiers of tracker announce URLs from the metainfo dictionary.
+	 */
+	public static final ByteBuffer KEY_ANNOUNCE_LIST = ByteBuffer.wrap(new byte[] {'a','n','n','o','u','n','c','e','-','l','i','s','t'});
+	
 	/**
 	 * A byte array containing the raw bytes of the torrent metainfo file.
 	 */
@@ -100,10 +119,17 @@ public class TorrentInfo
 	public final ByteBuffer info_hash;
 	
 	/**
-	 * The base URL of the tracker for client scrapes.
+	 * The base URL of the tracker for client scrapes.&nbsp; {@code null} if the torrent has no
+	 * announce key, or if its announce URL has a scheme that {@code URL} can't open, such as udp.
 	 */
 	public final URL announce_url;
 	
+	/**
+	 * The announce URLs of every tracker, grouped into tiers in order of preference.&nbsp; Taken from
+	 * the announce-list if the torrent has one, otherwise a single tier with the announce URL.
+	 */
+	public final String[][] announce_tiers;
+	
 	/**
 	 * The default length of each piece in bytes.&nbsp; Note that the last piece may be irregularly-sized (less than the value of piece_length)
 	 * if the file size is not a multiple of the piece size.
@@ -116,9 +142,23 @@ public class TorrentInfo
 	public final String file_name;
 	
 	/**
-	 * The length of the file in bytes.
+	 * The length of the file in bytes, which may be over 2 GB.&nbsp; For a multi-file torrent, this
+	 * is the total length of all files.
+	 */
+	public final long file_length;
+	
+	/**
+	 * The path of each file of a multi-file torrent, as path components relative to the torrent's
+	 * directory, in the order that the files are stored in the pieces.&nbsp; {@code null} for a
+	 * single-file torrent.
+	 */
+	public final String[][] file_paths;
+	
+	/**
+	 * The length of each file of a multi-file torrent, in the same order as {@link #file_paths}.&nbsp;
+	 * {@code null} for a single-file torrent.
 	 */
-	public final int file_length;
+	public final long[] file_lengths;
 	
 	/**
 	 * The SHA-1 hashes of each piece of the file.
@@ -146,13 +186,13 @@ public class TorrentInfo
 		
 		// Try to extract the announce URL
 		ByteBuffer url_buff = (ByteBuffer)this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE);
-		if(url_buff == null)
-			throw new BencodingException("Could not retrieve anounce URL from torrent metainfo.  Corrupt file?");
-		
+		String url_string = null;
+		URL announce_url = null;
 		try {
-			String url_string = new String(url_buff.array(), "ASCII");
-			URL announce_url = new URL(url_string);
-			this.announce_url = announce_url;
+			if(url_buff != null)
+				url_string = new String(url_buff.array(), "ASCII");
+			if(url_string != null)
+				announce_url = new URL(url_string);
 		}
 		catch(UnsupportedEncodingException uee)
 		{
@@ -160,8 +200,41 @@ public class TorrentInfo
 		}
 		catch(MalformedURLException murle)
 		{
-			throw new BencodingException(murle.getLocalizedMessage());
+			// Not an HTTP tracker, it's still listed in the announce tiers
+		}
+		this.announce_url = announce_url;
+		
+		// Try to extract the announce list, skipping tiers without any URLs
+		List<String[]> tiers = new ArrayList<String[]>();
+		Object announce_list = this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE_LIST);
+		if(announce_list instanceof List)
+		{
+			for(Object tier : (List<Object>)announce_list)
+			{
+				if(!(tier instanceof List))
+					continue;
+				List<String> urls = new ArrayList<String>();
+				for(Object url : (List<Object>)tier)
+				{
+					if(!(url instanceof ByteBuffer))
+						continue;
+					try {
+						urls.add(new String(((ByteBuffer)url).array(), "UTF-8"));
+					}
+					catch(UnsupportedEncodingException uee)
+					{
+						throw new BencodingException(uee.getLocalizedMessage());
+					}
+				}
+				if(!urls.isEmpty())
+					tiers.add(urls.toArray(new String[urls.size()]));
+			}
 		}
+		if(tiers.isEmpty() && url_string != null)
+			tiers.add(new String[] { url_string });
+		if(tiers.isEmpty())
+			throw new BencodingException("Could not retrieve anounce URL from torrent metainfo.  Corrupt file?");
+		this.announce_tiers = tiers.toArray(new String[tiers.size()][]);
 		
 		// Try to extract the info dictionary
 		ByteBuffer info_bytes = Bencoder2.getInfoBytes(torrent_file_bytes);
@@ -201,11 +274,49 @@ public class TorrentInfo
 			throw new BencodingException(uee.getLocalizedMessage());
 		}
 		
-		// Extract the file length from the info dictionary
-		Integer file_length = (Integer)this.info_map.get(TorrentInfo.KEY_LENGTH);
-		if(file_length == null)
-			throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
-		this.file_length = file_length.intValue();
+		// Extract the file list of a multi-file torrent, or the file length of a single-file torrent,
+		// from the info dictionary
+		List<Object> files = (List<Object>)this.info_map.get(TorrentInfo.KEY_FILES);
+		if(files == null)
+		{
+			Number file_length = (Number)this.info_map.get(TorrentInfo.KEY_LENGTH);
+			if(file_length == null)
+				throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
+			this.file_length = file_length.longValue();
+			this.file_paths = null;
+			this.file_lengths = null;
+		}
+		else
+		{
+			if(files.isEmpty())
+				throw new BencodingException("File list in info dictionary is empty.  Corrupt file?");
+			this.file_paths = new String[files.size()][];
+			this.file_lengths = new long[files.size()];
+			long total_length = 0;
+			for(int i = 0; i < files.size(); i++)
+			{
+				Map<ByteBuffer,Object> file_map = (Map<ByteBuffer,Object>)files.get(i);
+				Number length = (Number)file_map.get(TorrentInfo.KEY_LENGTH);
+				List<Object> path = (List<Object>)file_map.get(TorrentInfo.KEY_PATH);
+				if(length == null || length.longValue() < 0 || path == null || path.isEmpty())
+					throw new BencodingException("Could not extract file " + i + " from file list.  Corrupt file?");
+				this.file_lengths[i] = length.longValue();
+				total_length += length.longValue();
+				
+				this.file_paths[i] = new String[path.size()];
+				for(int j = 0; j < path.size(); j++)
+				{
+					try {
+						this.file_paths[i][j] = new String(((ByteBuffer)path.get(j)).array(),"UTF-8");
+					}
+					catch(UnsupportedEncodingException uee)
+					{
+						throw new BencodingException(uee.getLocalizedMessage());
+					}
+				}
+			}
+			this.file_length = total_length;
+		}
 		
 		// Extract the piece hashes from the info dictionary
 		ByteBuffer all_hashes = (ByteBuffer)this.info_map.get(TorrentInfo.KEY_PIECES);
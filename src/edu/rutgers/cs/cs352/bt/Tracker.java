@@ -4,14 +4,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
+import java.net.URI;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +38,35 @@ public class Tracker {
 	private final static Logger LOGGER = Logger.getLogger(Tracker.class
 			.getName());
 
+	/**
+	 * The time in milliseconds to wait for an HTTP tracker to accept the
+	 * connection.
+	 */
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * The time in milliseconds to wait for an HTTP tracker to send its
+	 * response.
+	 */
+	private static final int READ_TIMEOUT = 20000;
+
+	/**
+	 * The time in milliseconds to wait for the first response to a UDP
+	 * request, shorter than the protocol's 15 seconds. With
+	 * {@link #UDP_RETRIES} an unanswered request gives up after 3 + 6 + 12 =
+	 * 21 seconds, so a connect and an announce to a dead UDP tracker take at
+	 * most 42 seconds. That fits within
+	 * {@link AnnounceManager#ANNOUNCE_TIMEOUT}, so the next tracker in the
+	 * tier is tried in the same round.
+	 */
+	private static final int UDP_TIMEOUT = 3000;
+
+	/**
+	 * The number of times an unanswered UDP request is sent again, fewer than
+	 * the protocol allows.
+	 */
+	private static final int UDP_RETRIES = 2;
+
 	/**
 	 * Key used to retrieve the request error message.
 	 */
@@ -81,12 +113,30 @@ public class Tracker {
 	private static final ByteBuffer KEY_INCOMPLETE = ByteBuffer
 			.wrap(new byte[] { 'i', 'n', 'c', 'o', 'm', 'p', 'l', 'e', 't', 'e' });
 
+	/**
+	 * Key for the number of completed downloads in a scrape response.
+	 */
+	private static final ByteBuffer KEY_DOWNLOADED = ByteBuffer
+			.wrap(new byte[] { 'd', 'o', 'w', 'n', 'l', 'o', 'a', 'd', 'e', 'd' });
+
+	/**
+	 * Key to the statistics of each torrent in a scrape response.
+	 */
+	private static final ByteBuffer KEY_FILES = ByteBuffer.wrap(new byte[] {
+			'f', 'i', 'l', 'e', 's' });
+
 	/**
 	 * Key to the peers in the torrent.
 	 */
 	private static final ByteBuffer KEY_PEERS = ByteBuffer.wrap(new byte[] {
 			'p', 'e', 'e', 'r', 's' });
 
+	/**
+	 * The length of each peer in a compact peer list: a 4-byte IPv4 address
+	 * followed by a 2-byte port, both in network byte order.
+	 */
+	private static final int COMPACT_PEER_LENGTH = 6;
+
 	/**
 	 * Key to the peer's IP address.
 	 */
@@ -120,6 +170,12 @@ public class Tracker {
 	 */
 	private final String announceUrl;
 
+	/**
+	 * The UDP tracker interface if the announce URL is a udp:// URL, or
+	 * {@code null} to announce over HTTP.
+	 */
+	private final UdpTracker udpTracker;
+
 	/**
 	 * The port number that the client is listening on.
 	 */
@@ -146,8 +202,42 @@ public class Tracker {
 
 	/**
 	 * The default interval for which tracker announces should be performed at.
+	 * Set by announces on the tracker executor and read by the client.
+	 */
+	private volatile int interval = 60;
+
+	/**
+	 * The number of peers to ask for in announces, or -1 for the tracker's
+	 * default.
+	 */
+	private volatile int numWant = -1;
+
+	/**
+	 * Sets the number of peers to ask for in announces.
+	 * 
+	 * @param numWant
+	 *            the number of peers, or -1 for the tracker's default
+	 */
+	void setNumWant(final int numWant) {
+		this.numWant = numWant;
+	}
+
+	/**
+	 * The time in milliseconds that swarm statistics are cached.
+	 */
+	static final long SCRAPE_TTL = 15 * 60 * 1000;
+
+	/**
+	 * The scrape URL of an HTTP tracker, or {@code null} if it doesn't
+	 * support scrapes.
+	 */
+	private final String scrapeUrl;
+
+	/**
+	 * The latest swarm statistics of each torrent, by info hash, from scrapes
+	 * and announces.
 	 */
-	private int interval = 60;
+	private final Map<ByteBuffer, ScrapeStats> scrapeCache = new ConcurrentHashMap<ByteBuffer, ScrapeStats>();
 
 	/**
 	 * Creates a new Tracker interface object.
@@ -167,6 +257,50 @@ public class Tracker {
 		this.clientId = clientId;
 		this.announceUrl = announceUrl;
 		this.port = port;
+
+		// The scheme of the announce URL decides the tracker protocol
+		if (announceUrl.regionMatches(true, 0, "udp://", 0, 6)) {
+			final URI uri = URI.create(announceUrl);
+			if ((uri.getHost() == null) || (uri.getPort() < 0)) {
+				throw new IllegalArgumentException("Invalid UDP tracker URL "
+						+ announceUrl);
+			}
+			this.udpTracker = new UdpTracker(new InetSocketAddress(
+					uri.getHost(), uri.getPort()), clientId, infoHash);
+			this.udpTracker.setTimeout(Tracker.UDP_TIMEOUT,
+					Tracker.UDP_RETRIES);
+		} else {
+			this.udpTracker = null;
+		}
+		this.scrapeUrl = Tracker.toScrapeUrl(announceUrl);
+	}
+
+	/**
+	 * Derives the scrape URL of an HTTP tracker from its announce URL by
+	 * replacing "announce" at the start of the last path component with
+	 * "scrape".
+	 * 
+	 * @param announceUrl
+	 *            the announce URL
+	 * @return the scrape URL, or {@code null} if the tracker doesn't support
+	 *         scrapes
+	 */
+	static String toScrapeUrl(final String announceUrl) {
+		final int slash = announceUrl.lastIndexOf('/');
+		if ((slash < 0)
+				|| !announceUrl.startsWith("announce", slash + 1)) {
+			return null;
+		}
+		return announceUrl.substring(0, slash + 1) + "scrape"
+				+ announceUrl.substring(slash + 1 + "announce".length());
+	}
+
+	/**
+	 * @return the UDP tracker interface, or {@code null} if the tracker is
+	 *         announced to over HTTP
+	 */
+	UdpTracker getUdpTracker() {
+		return this.udpTracker;
 	}
 
 	/**
@@ -186,22 +320,42 @@ public class Tracker {
 	 * @throws BencodingException
 	 * @throws IOException
 	 */
-	List<Peer> announce(final int downloaded, final int uploaded,
-			final int left, final String event) throws BencodingException,
+	List<Peer> announce(final long downloaded, final long uploaded,
+			final long left, final String event) throws BencodingException,
 			IOException {
+		if (this.udpTracker != null) {
+			final ByteBuffer encodedPeers = this.udpTracker.announce(
+					downloaded, uploaded, left, event, this.port,
+					this.numWant);
+			this.interval = this.udpTracker.getInterval();
+			this.scrapeCache.put(ByteBuffer.wrap(this.infoHash),
+					new ScrapeStats(this.udpTracker.getSeeders(),
+							this.udpTracker.getLeechers(), -1));
+			return this.decodeCompactPeers(encodedPeers);
+		}
+
 		// Build HTTP GET request from the announce URL from the metainfo
 		final StringBuffer request = new StringBuffer();
 		request.append(this.announceUrl);
-		request.append("?info_hash=");
+		// Private trackers may already have a query in the announce URL
+		request.append((this.announceUrl.indexOf('?') < 0) ? "?" : "&");
+		request.append("info_hash=");
 		request.append(Utility.bytesToURL(this.infoHash));
 		request.append("&peer_id=");
 		request.append(Utility.bytesToURL(this.clientId));
 		request.append("&port=");
 		request.append(this.port);
+		request.append("&uploaded=");
+		request.append(uploaded);
 		request.append("&downloaded=");
 		request.append(downloaded);
 		request.append("&left=");
 		request.append(left);
+		request.append("&compact=1");
+		if (this.numWant >= 0) {
+			request.append("&numwant=");
+			request.append(this.numWant);
+		}
 		if ((event != null) && !event.isEmpty()) {
 			request.append("&event=");
 			request.append(event);
@@ -217,43 +371,7 @@ public class Tracker {
 
 		Tracker.LOGGER.info("Announcing: " + request.toString());
 
-		HttpURLConnection httpConnection;
-		try {
-			httpConnection = (HttpURLConnection) url.openConnection();
-		} catch (final IOException ioe) {
-			throw new IOException(
-					"An I/O exception occurred when openning the HTTP connection");
-		}
-		try {
-			httpConnection.setRequestMethod("GET");
-		} catch (final ProtocolException e) {
-			throw new ProtocolException("A protocol exception was encountered.");
-		}
-
-		// Response code used to find if connection was success or failure (and
-		// reason for failure)
-		int responseCode;
-		try {
-			responseCode = httpConnection.getResponseCode();
-		} catch (final IOException e) {
-			throw new IOException(
-					"An I/O exception occurred when getting the HTTP response code");
-		}
-		Tracker.LOGGER.info("Response Code: " + responseCode);
-
-		// Receive the response
-		// Read each byte from input stream and write to an output stream
-		final InputStream is = httpConnection.getInputStream();
-		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		int dataIn;
-		final byte[] data = new byte[16384];
-		while ((dataIn = is.read(data, 0, data.length)) != -1) {
-			buffer.write(data, 0, dataIn);
-		}
-		buffer.flush();
-		buffer.close();
-		is.close();
-		final byte[] response = buffer.toByteArray();
+		final byte[] response = Tracker.get(url);
 
 		// Decode the Bencoded response
 		HashMap<ByteBuffer, Object> responseMap;
@@ -265,9 +383,10 @@ public class Tracker {
 					"A bencoding exception occurred when decoding tracker response.");
 		}
 
-		// Set the interval
+		// Set the interval, publishing only the final value
+		int interval = this.interval;
 		if (responseMap.containsKey(Tracker.KEY_INTERVAL)) {
-			this.interval = ((Integer) responseMap.get(Tracker.KEY_INTERVAL))
+			interval = ((Integer) responseMap.get(Tracker.KEY_INTERVAL))
 					.intValue();
 		} else {
 			Tracker.LOGGER.log(Level.WARNING,
@@ -276,59 +395,243 @@ public class Tracker {
 
 		// Set min interval
 		if (responseMap.containsKey(Tracker.KEY_MIN_INTERVAL)) {
-			this.interval = ((Integer) responseMap
+			interval = ((Integer) responseMap
 					.get(Tracker.KEY_MIN_INTERVAL)).intValue();
 			Tracker.LOGGER.info("Minimal interval specified in torrent info.");
 		} else {
-			this.interval = (int) (this.interval / 2.0);
+			interval = (int) (interval / 2.0);
 			Tracker.LOGGER
 					.info("No minimal interval specified in torrent info.");
 		}
-		Tracker.LOGGER.info("Minimal interval for announce = " + this.interval
+		this.interval = interval;
+		Tracker.LOGGER.info("Minimal interval for announce = " + interval
 				+ " seconds");
 
-		// Decode list of bencodeded dictionaries corresponding to peers
-		ArrayList<HashMap<ByteBuffer, Object>> encodedPeerList = null;
-		if (responseMap.containsKey(Tracker.KEY_PEERS)) {
-			encodedPeerList = (ArrayList<HashMap<ByteBuffer, Object>>) responseMap
-					.get(Tracker.KEY_PEERS);
-		} else {
-			Tracker.LOGGER.log(Level.WARNING,
-					"No peer list given by tracker response.");
-			return null;
+		// Keep the swarm size, which is as good as a scrape
+		if ((responseMap.get(Tracker.KEY_COMPLETE) instanceof Number)
+				&& (responseMap.get(Tracker.KEY_INCOMPLETE) instanceof Number)) {
+			this.scrapeCache.put(ByteBuffer.wrap(this.infoHash),
+					new ScrapeStats(((Number) responseMap
+							.get(Tracker.KEY_COMPLETE)).intValue(),
+							((Number) responseMap.get(Tracker.KEY_INCOMPLETE))
+									.intValue(), -1));
+		}
+
+		// Trackers that honor compact=1 send a string of packed peers, older
+		// ones still send a list of dictionaries
+		final Object encodedPeers = responseMap.get(Tracker.KEY_PEERS);
+		if (encodedPeers instanceof ByteBuffer) {
+			return this.decodeCompactPeers((ByteBuffer) encodedPeers);
+		} else if (encodedPeers instanceof List) {
+			return this.decodePeerDictionaries((List<?>) encodedPeers);
+		}
+		Tracker.LOGGER.log(Level.WARNING,
+				"No peer list given by tracker response.");
+		return null;
+	}
+
+	/**
+	 * @return {@code true} if the tracker supports scrapes
+	 */
+	boolean canScrape() {
+		return (this.udpTracker != null) || (this.scrapeUrl != null);
+	}
+
+	/**
+	 * Gives the cached swarm statistics of this tracker's torrent.
+	 * 
+	 * @return the statistics, or {@code null} if there are none younger than
+	 *         {@link #SCRAPE_TTL}
+	 */
+	ScrapeStats getSwarmStats() {
+		final ScrapeStats stats = this.scrapeCache.get(ByteBuffer
+				.wrap(this.infoHash));
+		return ((stats == null) || stats.isExpired(Tracker.SCRAPE_TTL)) ? null
+				: stats;
+	}
+
+	/**
+	 * Scrapes the tracker for the swarm statistics of several torrents in a
+	 * single request. Statistics younger than {@link #SCRAPE_TTL} are taken
+	 * from the cache, and only the other torrents are scraped.
+	 * 
+	 * @param infoHashes
+	 *            the info hashes of the torrents
+	 * @return the statistics of each torrent that the tracker knows, by info
+	 *         hash
+	 * @throws IOException
+	 *             if the scrape failed or the tracker doesn't support scrapes
+	 * @throws BencodingException
+	 *             if the scrape response is invalid
+	 */
+	Map<ByteBuffer, ScrapeStats> scrape(final byte[]... infoHashes)
+			throws IOException, BencodingException {
+		final Map<ByteBuffer, ScrapeStats> stats = new HashMap<ByteBuffer, ScrapeStats>();
+		final List<byte[]> missing = new ArrayList<byte[]>();
+		for (final byte[] infoHash : infoHashes) {
+			final ByteBuffer key = ByteBuffer.wrap(infoHash);
+			final ScrapeStats cached = this.scrapeCache.get(key);
+			if ((cached != null) && (cached.getDownloaded() >= 0)
+					&& !cached.isExpired(Tracker.SCRAPE_TTL)) {
+				stats.put(key, cached);
+			} else {
+				missing.add(infoHash);
+			}
+		}
+		if (missing.isEmpty()) {
+			return stats;
+		}
+
+		if (this.udpTracker != null) {
+			final int[][] scraped = this.udpTracker.scrape(missing
+					.toArray(new byte[missing.size()][]));
+			for (int i = 0; i < scraped.length; i++) {
+				final ScrapeStats torrentStats = new ScrapeStats(
+						scraped[i][0], scraped[i][2], scraped[i][1]);
+				this.scrapeCache.put(ByteBuffer.wrap(missing.get(i)),
+						torrentStats);
+				stats.put(ByteBuffer.wrap(missing.get(i)), torrentStats);
+			}
+			return stats;
+		}
+		if (this.scrapeUrl == null) {
+			throw new IOException("Tracker " + this
+					+ " doesn't support scrapes");
+		}
+
+		final StringBuilder request = new StringBuilder(this.scrapeUrl);
+		char separator = (this.scrapeUrl.indexOf('?') < 0) ? '?' : '&';
+		for (final byte[] infoHash : missing) {
+			request.append(separator);
+			request.append("info_hash=");
+			request.append(Utility.bytesToURL(infoHash));
+			separator = '&';
+		}
+		Tracker.LOGGER.info("Scraping: " + request);
+
+		final Object response = Bencoder2.decode(Tracker.get(new URL(request
+				.toString())));
+		if (!(response instanceof Map)) {
+			throw new BencodingException("Scrape response isn't a dictionary");
+		}
+		final Map<?, ?> responseMap = (Map<?, ?>) response;
+		final Object failureReason = responseMap
+				.get(Tracker.KEY_FAILURE_REASON);
+		if (failureReason instanceof ByteBuffer) {
+			throw new IOException("Scrape failed: "
+					+ new String(((ByteBuffer) failureReason).array(), "UTF-8"));
+		}
+		final Object files = responseMap.get(Tracker.KEY_FILES);
+		if (!(files instanceof Map)) {
+			throw new BencodingException("Scrape response has no files");
+		}
+		for (final Map.Entry<?, ?> file : ((Map<?, ?>) files).entrySet()) {
+			if (!(file.getKey() instanceof ByteBuffer)
+					|| !(file.getValue() instanceof Map)) {
+				continue;
+			}
+			final ByteBuffer fileHash = (ByteBuffer) file.getKey();
+			final Map<?, ?> fileMap = (Map<?, ?>) file.getValue();
+			final ScrapeStats torrentStats = new ScrapeStats(
+					Tracker.getInt(fileMap, Tracker.KEY_COMPLETE),
+					Tracker.getInt(fileMap, Tracker.KEY_INCOMPLETE),
+					Tracker.getInt(fileMap, Tracker.KEY_DOWNLOADED));
+			this.scrapeCache.put(fileHash, torrentStats);
+			stats.put(fileHash, torrentStats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Reads an integer from a decoded dictionary.
+	 * 
+	 * @param map
+	 *            the dictionary
+	 * @param key
+	 *            the key of the integer
+	 * @return the integer, or 0 if there isn't one
+	 */
+	private static int getInt(final Map<?, ?> map, final ByteBuffer key) {
+		final Object value = map.get(key);
+		return (value instanceof Number) ? ((Number) value).intValue() : 0;
+	}
+
+	/**
+	 * Decodes a compact peer list, in which each peer is 6 bytes. Compact
+	 * peers don't include a peer id.
+	 * 
+	 * @param encodedPeers
+	 *            the packed peers, from the buffer's position to its limit
+	 * @return the peers
+	 */
+	private List<Peer> decodeCompactPeers(final ByteBuffer encodedPeers) {
+		final ByteBuffer packed = encodedPeers.duplicate();
+		final int count = packed.remaining() / Tracker.COMPACT_PEER_LENGTH;
+		final List<Peer> peerList = new ArrayList<Peer>(count);
+		final StringBuilder ip = new StringBuilder(15);
+		for (int i = 0; i < count; i++) {
+			ip.setLength(0);
+			ip.append(packed.get() & 0xFF).append('.')
+					.append(packed.get() & 0xFF).append('.')
+					.append(packed.get() & 0xFF).append('.')
+					.append(packed.get() & 0xFF);
+			final int peerPort = packed.getShort() & 0xFFFF;
+
+			final Peer peer = new Peer(null, ip.toString(), peerPort,
+					this.infoHash, this.clientId);
+			peerList.add(peer);
+
+			Tracker.LOGGER.info("Peer in torrent: " + peer);
+		}
+		if (packed.hasRemaining()) {
+			Tracker.LOGGER.warning("Ignored " + packed.remaining()
+					+ " trailing bytes of the compact peer list");
 		}
+		return peerList;
+	}
 
+	/**
+	 * Decodes a peer list in the original format, a list of dictionaries.
+	 * Entries that aren't dictionaries or lack an IP or port are skipped.
+	 * 
+	 * @param encodedPeerList
+	 *            the bencoded peer dictionaries
+	 * @return the peers
+	 * @throws IOException
+	 */
+	private List<Peer> decodePeerDictionaries(final List<?> encodedPeerList)
+			throws IOException {
 		// Iterate through the peers and build peer list
-		final LinkedList<Peer> peerList = new LinkedList<Peer>();
-		for (final HashMap<ByteBuffer, Object> peerMap : encodedPeerList) {
-
-			// Print the map
-			// ToolKit.print(peerMap);
-
-			// Get peer IP
-			String peerIP = null;
-			if (peerMap.containsKey(Tracker.KEY_IP)) {
-				final ByteBuffer peerIPBB = (ByteBuffer) peerMap
-						.get(Tracker.KEY_IP);
-				peerIP = new String(peerIPBB.array(), "UTF-8");
+		final List<Peer> peerList = new ArrayList<Peer>(encodedPeerList.size());
+		for (final Object encodedPeer : encodedPeerList) {
+			if (!(encodedPeer instanceof Map)) {
+				Tracker.LOGGER.warning("Ignored malformed peer entry: "
+						+ encodedPeer);
+				continue;
+			}
+			final Map<?, ?> peerMap = (Map<?, ?>) encodedPeer;
+
+			// Get peer IP and port
+			final Object peerIPBB = peerMap.get(Tracker.KEY_IP);
+			final Object peerPort = peerMap.get(Tracker.KEY_PORT);
+			if (!(peerIPBB instanceof ByteBuffer)
+					|| !(peerPort instanceof Number)) {
+				Tracker.LOGGER.warning("Ignored peer entry without an IP or port");
+				continue;
 			}
+			final String peerIP = new String(((ByteBuffer) peerIPBB).array(),
+					"UTF-8");
 
 			// Get peer ID
-			ByteBuffer peerIdBB;
 			byte[] peerId = null;
-			if (peerMap.containsKey(Tracker.KEY_PEER_ID)) {
-				peerIdBB = (ByteBuffer) peerMap.get(Tracker.KEY_PEER_ID);
-				peerId = peerIdBB.array();
-			}
-
-			// Get peer port
-			Integer peerPort = -1;
-			if (peerMap.containsKey(Tracker.KEY_PORT)) {
-				peerPort = (Integer) peerMap.get(Tracker.KEY_PORT);
+			final Object peerIdBB = peerMap.get(Tracker.KEY_PEER_ID);
+			if (peerIdBB instanceof ByteBuffer) {
+				peerId = ((ByteBuffer) peerIdBB).array();
 			}
 
 			// Add new peer
-			final Peer peer = new Peer(peerId, peerIP, peerPort, this.infoHash,
+			final Peer peer = new Peer(peerId, peerIP,
+					((Number) peerPort).intValue(), this.infoHash,
 					this.clientId);
 			peerList.add(peer);
 
@@ -338,6 +641,68 @@ public class Tracker {
 		return peerList;
 	}
 
+	/**
+	 * Sends an HTTP GET request and reads the whole response. The response is
+	 * always read to the end and its stream closed, so that the connection
+	 * is kept alive for the next request to the same tracker.
+	 * 
+	 * @param url
+	 *            the request URL
+	 * @return the response body
+	 * @throws IOException
+	 *             if the request failed or timed out, or the tracker
+	 *             responded with an HTTP error
+	 */
+	private static byte[] get(final URL url) throws IOException {
+		final HttpURLConnection httpConnection = (HttpURLConnection) url
+				.openConnection();
+		httpConnection.setConnectTimeout(Tracker.CONNECT_TIMEOUT);
+		httpConnection.setReadTimeout(Tracker.READ_TIMEOUT);
+		httpConnection.setUseCaches(false);
+		try {
+			httpConnection.setRequestMethod("GET");
+		} catch (final ProtocolException e) {
+			throw new ProtocolException("A protocol exception was encountered.");
+		}
+
+		// Response code used to find if connection was success or failure (and
+		// reason for failure)
+		final int responseCode = httpConnection.getResponseCode();
+		Tracker.LOGGER.info("Response Code: " + responseCode);
+
+		// Receive the response
+		// Read each byte from input stream and write to an output stream
+		final InputStream is = (responseCode >= 400) ? httpConnection
+				.getErrorStream() : httpConnection.getInputStream();
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		if (is != null) {
+			try {
+				int dataIn;
+				final byte[] data = new byte[16384];
+				while ((dataIn = is.read(data, 0, data.length)) != -1) {
+					buffer.write(data, 0, dataIn);
+				}
+			} finally {
+				is.close();
+			}
+		}
+		if (responseCode != HttpURLConnection.HTTP_OK) {
+			throw new IOException("Tracker " + url.getHost()
+					+ " responded with HTTP " + responseCode);
+		}
+		return buffer.toByteArray();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.announceUrl;
+	}
+
 	/**
 	 * Get the latest "interval" value from the tracker.
 	 * 
@@ -0,0 +1,414 @@
+package edu.rutgers.cs.cs352.bt;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Talks to a tracker over the UDP tracker protocol. Every exchange is a single
+ * request datagram and a single response datagram: a connect exchange gives a
+ * connection id, which is cached and sent with announces and scrapes until it
+ * expires. Requests that go unanswered are sent again after a timeout that
+ * doubles each time.
+ * 
+ * @author Julian Modesto
+ * 
+ */
+class UdpTracker {
+
+	/**
+	 * Logger for the UDP tracker.
+	 */
+	private final static Logger LOGGER = Logger.getLogger(UdpTracker.class
+			.getName());
+
+	/**
+	 * The magic connection id that a connect request is sent with.
+	 */
+	private static final long PROTOCOL_ID = 0x41727101980L;
+
+	/**
+	 * Action to request a connection id.
+	 */
+	static final int ACTION_CONNECT = 0;
+
+	/**
+	 * Action to announce.
+	 */
+	static final int ACTION_ANNOUNCE = 1;
+
+	/**
+	 * Action to scrape.
+	 */
+	static final int ACTION_SCRAPE = 2;
+
+	/**
+	 * Action of an error response.
+	 */
+	static final int ACTION_ERROR = 3;
+
+	/**
+	 * How long in milliseconds a connection id may be used after it was
+	 * received.
+	 */
+	private static final long CONNECTION_ID_LIFETIME = 60000;
+
+	/**
+	 * The default time in milliseconds to wait for the first response, which
+	 * doubles with every retransmission.
+	 */
+	static final int DEFAULT_TIMEOUT = 15000;
+
+	/**
+	 * The default number of retransmissions before giving up.
+	 */
+	static final int DEFAULT_RETRIES = 8;
+
+	/**
+	 * The largest response that will be read: the header and 200 peers is
+	 * well below it.
+	 */
+	private static final int MAX_PACKET_LENGTH = 2048;
+
+	/**
+	 * The tracker's address.
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * The infohash that identifies the torrent.
+	 */
+	private final byte[] infoHash;
+
+	/**
+	 * The unique ID to identify the local BT client.
+	 */
+	private final byte[] clientId;
+
+	/**
+	 * A random key that lets the tracker recognize the client if its address
+	 * changes.
+	 */
+	private final int key;
+
+	/**
+	 * Generates transaction ids.
+	 */
+	private final Random random = new Random();
+
+	/**
+	 * The socket that requests are sent from, opened on the first request.
+	 */
+	private DatagramSocket socket;
+
+	/**
+	 * The cached connection id.
+	 */
+	private long connectionId;
+
+	/**
+	 * The time in milliseconds that the cached connection id expires.
+	 */
+	private long connectionExpiry = 0;
+
+	/**
+	 * The time in milliseconds to wait for the first response.
+	 */
+	private int timeout = UdpTracker.DEFAULT_TIMEOUT;
+
+	/**
+	 * The number of retransmissions before giving up.
+	 */
+	private int retries = UdpTracker.DEFAULT_RETRIES;
+
+	/**
+	 * The announce interval from the latest announce response, in seconds.
+	 */
+	private int interval = 0;
+
+	/**
+	 * The number of seeders from the latest announce response.
+	 */
+	private int seeders = 0;
+
+	/**
+	 * The number of leechers from the latest announce response.
+	 */
+	private int leechers = 0;
+
+	/**
+	 * Creates a new UDP tracker interface.
+	 * 
+	 * @param address
+	 *            the tracker's host and port
+	 * @param clientId
+	 *            the local client's peer id
+	 * @param infoHash
+	 *            the torrent's info hash
+	 */
+	UdpTracker(final InetSocketAddress address, final byte[] clientId,
+			final byte[] infoHash) {
+		this.address = address;
+		this.clientId = clientId;
+		this.infoHash = infoHash;
+		this.key = this.random.nextInt();
+	}
+
+	/**
+	 * Changes the retransmission timeouts, e.g. for a tracker on the local
+	 * network.
+	 * 
+	 * @param timeout
+	 *            the time in milliseconds to wait for the first response
+	 * @param retries
+	 *            the number of retransmissions before giving up
+	 */
+	synchronized void setTimeout(final int timeout, final int retries) {
+		this.timeout = Math.max(1, timeout);
+		this.retries = Math.max(0, retries);
+	}
+
+	/**
+	 * Announces to the tracker.
+	 * 
+	 * @param downloaded
+	 *            the number of bytes downloaded in this torrent
+	 * @param uploaded
+	 *            the number of bytes uploaded in this torrent
+	 * @param left
+	 *            the number of bytes remaining in the file
+	 * @param event
+	 *            the announce event, or an empty string or {@code null} for
+	 *            none
+	 * @param port
+	 *            the port that the client is listening on
+	 * @param numWant
+	 *            the number of peers to ask for, or -1 for the tracker's
+	 *            default
+	 * @return the peers in compact format, 6 bytes per peer
+	 * @throws IOException
+	 *             if the tracker didn't answer or returned an error
+	 */
+	synchronized ByteBuffer announce(final long downloaded,
+			final long uploaded, final long left, final String event,
+			final int port, final int numWant) throws IOException {
+		final long id = this.getConnectionId();
+		final int transactionId = this.random.nextInt();
+		final ByteBuffer request = ByteBuffer.allocate(98);
+		request.putLong(id);
+		request.putInt(UdpTracker.ACTION_ANNOUNCE);
+		request.putInt(transactionId);
+		request.put(this.infoHash);
+		request.put(this.clientId);
+		request.putLong(downloaded);
+		request.putLong(left);
+		request.putLong(uploaded);
+		request.putInt(UdpTracker.getEventCode(event));
+		// Let the tracker use the address the request came from
+		request.putInt(0);
+		request.putInt(this.key);
+		request.putInt(numWant);
+		request.putShort((short) port);
+
+		final ByteBuffer response = this.exchange(request.array(),
+				transactionId, UdpTracker.ACTION_ANNOUNCE, 20);
+		this.interval = response.getInt();
+		this.leechers = response.getInt();
+		this.seeders = response.getInt();
+		UdpTracker.LOGGER.info("Announced to udp://" + this.address
+				+ ": interval=" + this.interval + ", seeders=" + this.seeders
+				+ ", leechers=" + this.leechers);
+		return response.slice();
+	}
+
+	/**
+	 * Scrapes the tracker for the swarm statistics of several torrents at
+	 * once.
+	 * 
+	 * @param infoHashes
+	 *            the info hashes of the torrents
+	 * @return the seeders, completed downloads and leechers of each torrent,
+	 *         in the order of the info hashes
+	 * @throws IOException
+	 *             if the tracker didn't answer or returned an error
+	 */
+	synchronized int[][] scrape(final byte[][] infoHashes) throws IOException {
+		final long id = this.getConnectionId();
+		final int transactionId = this.random.nextInt();
+		final ByteBuffer request = ByteBuffer
+				.allocate(16 + (20 * infoHashes.length));
+		request.putLong(id);
+		request.putInt(UdpTracker.ACTION_SCRAPE);
+		request.putInt(transactionId);
+		for (final byte[] hash : infoHashes) {
+			request.put(hash);
+		}
+
+		final ByteBuffer response = this.exchange(request.array(),
+				transactionId, UdpTracker.ACTION_SCRAPE,
+				8 + (12 * infoHashes.length));
+		final int[][] stats = new int[infoHashes.length][3];
+		for (final int[] torrent : stats) {
+			torrent[0] = response.getInt();
+			torrent[1] = response.getInt();
+			torrent[2] = response.getInt();
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the announce interval from the latest announce, in seconds
+	 */
+	synchronized int getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * @return the number of seeders from the latest announce
+	 */
+	synchronized int getSeeders() {
+		return this.seeders;
+	}
+
+	/**
+	 * @return the number of leechers from the latest announce
+	 */
+	synchronized int getLeechers() {
+		return this.leechers;
+	}
+
+	/**
+	 * Closes the socket. A later request opens a new one.
+	 */
+	synchronized void close() {
+		if (this.socket != null) {
+			this.socket.close();
+			this.socket = null;
+		}
+		this.connectionExpiry = 0;
+	}
+
+	/**
+	 * Gives the cached connection id, first connecting if it has expired.
+	 * 
+	 * @return the connection id
+	 * @throws IOException
+	 *             if the tracker didn't answer or returned an error
+	 */
+	private long getConnectionId() throws IOException {
+		if (System.currentTimeMillis() < this.connectionExpiry) {
+			return this.connectionId;
+		}
+		final int transactionId = this.random.nextInt();
+		final ByteBuffer request = ByteBuffer.allocate(16);
+		request.putLong(UdpTracker.PROTOCOL_ID);
+		request.putInt(UdpTracker.ACTION_CONNECT);
+		request.putInt(transactionId);
+
+		final ByteBuffer response = this.exchange(request.array(),
+				transactionId, UdpTracker.ACTION_CONNECT, 16);
+		this.connectionId = response.getLong();
+		this.connectionExpiry = System.currentTimeMillis()
+				+ UdpTracker.CONNECTION_ID_LIFETIME;
+		return this.connectionId;
+	}
+
+	/**
+	 * Sends a request and waits for its response, sending it again after
+	 * each timeout. The timeout doubles with every retransmission. Responses
+	 * to earlier transactions are ignored.
+	 * 
+	 * @param request
+	 *            the request datagram
+	 * @param transactionId
+	 *            the transaction id of the request
+	 * @param action
+	 *            the action that the response must have
+	 * @param minLength
+	 *            the shortest valid response
+	 * @return the response positioned after the action and transaction id
+	 * @throws IOException
+	 *             if the tracker didn't answer or returned an error
+	 */
+	private ByteBuffer exchange(final byte[] request, final int transactionId,
+			final int action, final int minLength) throws IOException {
+		if (this.socket == null) {
+			this.socket = new DatagramSocket();
+		}
+		final DatagramPacket requestPacket = new DatagramPacket(request,
+				request.length, this.address);
+		final byte[] data = new byte[UdpTracker.MAX_PACKET_LENGTH];
+		final DatagramPacket responsePacket = new DatagramPacket(data,
+				data.length);
+
+		for (int attempt = 0; attempt <= this.retries; attempt++) {
+			final long wait = (long) this.timeout << Math.min(attempt, 16);
+			final long deadline = System.currentTimeMillis() + wait;
+			this.socket.send(requestPacket);
+
+			long remaining = wait;
+			while (remaining > 0) {
+				this.socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE,
+						remaining));
+				responsePacket.setLength(data.length);
+				try {
+					this.socket.receive(responsePacket);
+				} catch (final SocketTimeoutException ste) {
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+
+				final ByteBuffer response = ByteBuffer.wrap(data, 0,
+						responsePacket.getLength());
+				if ((response.remaining() < 8)
+						|| (response.getInt(4) != transactionId)) {
+					// Late response to an earlier transaction
+					continue;
+				}
+				final int responseAction = response.getInt();
+				response.getInt();
+				if (responseAction == UdpTracker.ACTION_ERROR) {
+					// The connection id may have been rejected
+					this.connectionExpiry = 0;
+					final byte[] message = new byte[response.remaining()];
+					response.get(message);
+					throw new IOException("Tracker error: "
+							+ new String(message, "UTF-8"));
+				}
+				if ((responseAction != action)
+						|| (responsePacket.getLength() < minLength)) {
+					throw new IOException("Invalid response from tracker "
+							+ this.address);
+				}
+				return response;
+			}
+			UdpTracker.LOGGER.info("No response from tracker " + this.address
+					+ " after " + wait + " ms");
+		}
+		throw new SocketTimeoutException("Tracker " + this.address
+				+ " did not respond");
+	}
+
+	/**
+	 * Converts an announce event to its code in the UDP protocol.
+	 * 
+	 * @param event
+	 *            the event name
+	 * @return the event code
+	 */
+	private static int getEventCode(final String event) {
+		if ("completed".equals(event)) {
+			return 1;
+		} else if ("started".equals(event)) {
+			return 2;
+		} else if ("stopped".equals(event)) {
+			return 3;
+		}
+		return 0;
+	}
+}